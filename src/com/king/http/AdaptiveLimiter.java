@@ -0,0 +1,151 @@
+package com.king.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-host limit on requests in flight that follows the host's latency, AIMD style. Each
+ * completed request is a sample: while the recent request time stays within
+ * <code>tolerance</code> times the host's long-term average and the limit was actually
+ * reached, the limit grows by about one per round trip; when requests get slower than that,
+ * fail, or come back 5xx/429, the limit is cut by <code>backoffRatio</code>, at most once per
+ * round trip. A fast host thus gets more
+ * parallel requests than a fixed per-route cap would give it, an overloaded one fewer, and the
+ * rest wait in a queue of at most <code>maxQueued</code> per host instead of piling up at the
+ * server. Beyond that they fail with {@link RequestRejectedException}.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.setConcurrencyLimiter(new AdaptiveLimiter());
+ */
+public class AdaptiveLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    public static final float DEFAULT_TOLERANCE = 2.0f;
+    public static final float DEFAULT_BACKOFF_RATIO = 0.8f;
+    public static final int DEFAULT_MAX_QUEUED = 128;
+    private static final int MAX_HOSTS = 256;
+    private static final double SHORT_SMOOTHING = 0.2;
+    // 基准大约跟随最近一百个样本, 网络变化后不会一直停在旧值
+    private static final double LONG_SMOOTHING = 0.01;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final float tolerance;
+    private final float backoffRatio;
+    private final int maxQueued;
+    private final ConcurrentHashMap<String, HostLimit> hosts = new ConcurrentHashMap<String, HostLimit>();
+
+    public AdaptiveLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_MAX_QUEUED);
+    }
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued) {
+        this(initialLimit, minLimit, maxLimit, maxQueued, DEFAULT_TOLERANCE, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * @param tolerance how much slower than the long-term average recent requests may be
+     *        before it counts as a sign of queueing
+     * @param backoffRatio factor the limit is multiplied with on such a sign, below 1
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued, float tolerance,
+            float backoffRatio) {
+        if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Need 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        if (maxQueued < 0 || tolerance < 1 || backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Need maxQueued >= 0, tolerance >= 1, 0 < backoffRatio < 1");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return requests the host may have in flight right now
+     */
+    public int getLimit(String host) {
+        HostLimit limit = hosts.get(host);
+        return limit == null ? initialLimit : limit.get();
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @param inFlight requests to the host in flight when this one started, itself included
+     */
+    void onSample(String host, long rttNanos, int inFlight, boolean failed) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null) {
+            if (hosts.size() >= MAX_HOSTS) {
+                hosts.clear();
+            }
+            HostLimit created = new HostLimit();
+            limit = hosts.putIfAbsent(host, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        limit.sample(rttNanos, inFlight, failed, System.nanoTime());
+    }
+
+    private final class HostLimit {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private double limit = initialLimit;
+        // 最近的往返时间和长期的基准, 都是指数平滑; 前者明显高于后者说明请求在排队
+        private double shortRtt;
+        private double longRtt;
+        private long lastDecrease;
+
+        int get() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void sample(long rtt, int inFlight, boolean failed, long now) {
+            lock.lock();
+            try {
+                // 失败可能很快返回, 不计入往返时间
+                if (!failed) {
+                    if (longRtt == 0) {
+                        shortRtt = rtt;
+                        longRtt = rtt;
+                    } else {
+                        shortRtt += (rtt - shortRtt) * SHORT_SMOOTHING;
+                        longRtt += (rtt - longRtt) * LONG_SMOOTHING;
+                    }
+                }
+                boolean congested = failed || shortRtt > longRtt * tolerance;
+                if (congested) {
+                    // 一个往返时间内只减一次, 否则同一批慢请求会把限制一路砍到底
+                    if (now - lastDecrease >= (long) shortRtt) {
+                        limit = Math.max(minLimit, limit * backoffRatio);
+                        lastDecrease = now;
+                    }
+                } else if (inFlight >= (int) limit) {
+                    // 加法增长: 每个往返时间大约加一
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
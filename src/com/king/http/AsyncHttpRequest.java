@@ -1,16 +1,23 @@
 package com.king.http;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
@@ -19,26 +26,152 @@ import com.king.http.cache.HttpResponseCache;
 
 public class AsyncHttpRequest implements Runnable {
 	
-	private final AbstractHttpClient client;
+	private final HttpTransport transport;
+	private final HttpRequestRetryHandler retryHandler;
 	private final HttpContext context;
 	private final HttpUriRequest request;
 	private final HttpResponseHandler responseHandler;
 	private boolean isBinaryRequest;
+	private boolean isStreamingRequest;
 	private int executionCount;
 	private HttpResponseCache responseCache;
+	private final Executor decodeExecutor;
+	private boolean decodeHandedOff;
+	// 以下只在runAsync时使用
+	private Executor retryExecutor;
+	private volatile Runnable onDone;
+	private CircuitBreaker circuitBreaker;
+	private RetryBudget retryBudget;
+	private RateLimiter rateLimiter;
+	// System.nanoTime()的截止时间, 0表示没有
+	private long deadlineNanos;
+	private int attemptTimeoutMillis;
+	private volatile boolean expired;
+	private volatile boolean cancelled;
+	// 最后一次尝试是I/O失败, 5xx或429: 并发限制据此判断是否过载
+	private volatile boolean failed;
+	// 至少有一次尝试真的发给了transport; 命中缓存, 熔断等没有发出的请求不算样本
+	private volatile boolean sent;
 
 	public AsyncHttpRequest(AbstractHttpClient client, HttpContext context,
 			HttpUriRequest request, HttpResponseHandler responseHandler,HttpResponseCache responseCache) {
-		this.client = client;
+		this(client, context, request, responseHandler, responseCache, null);
+	}
+
+	/**
+	 * @param decodeExecutor where the response body is decoded and bound before the callback
+	 *        is dispatched; null decodes on the I/O thread as before
+	 */
+	public AsyncHttpRequest(AbstractHttpClient client, HttpContext context,
+			HttpUriRequest request, HttpResponseHandler responseHandler,
+			HttpResponseCache responseCache, Executor decodeExecutor) {
+		this(new DefaultHttpTransport(client), client.getHttpRequestRetryHandler(), context, request,
+				responseHandler, responseCache, decodeExecutor);
+	}
+
+	/**
+	 * @param transport the engine the request is sent through, see {@link HttpTransport}
+	 */
+	public AsyncHttpRequest(HttpTransport transport, HttpRequestRetryHandler retryHandler,
+			HttpContext context, HttpUriRequest request, HttpResponseHandler responseHandler,
+			HttpResponseCache responseCache, Executor decodeExecutor) {
+		this.transport = transport;
+		this.retryHandler = retryHandler;
 		this.context = context;
 		this.request = request;
 		this.responseHandler = responseHandler;
 		this.responseCache = responseCache;
+		this.decodeExecutor = decodeExecutor;
 		if (responseHandler instanceof BinaryHttpResponseHandler) {
 			this.isBinaryRequest = true;
 		}
+		if (responseHandler instanceof StreamingResponseHandler) {
+			this.isStreamingRequest = true;
+		}
 	}
 	
+	/**
+	 * @param circuitBreaker consulted before every attempt and told its outcome, null for none
+	 */
+	void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @param retryBudget credited for every successful response, null for none
+	 */
+	void setRetryBudget(RetryBudget retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+	/**
+	 * @param rateLimiter paused for the host when a 429 or 503 carries Retry-After, null for none
+	 */
+	void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @param deadlineNanos {@link System#nanoTime()} by which the request must be done, 0 for none
+	 * @param attemptTimeoutMillis connect and read timeout of an attempt when more time is left
+	 */
+	void setDeadline(long deadlineNanos, int attemptTimeoutMillis) {
+		this.deadlineNanos = deadlineNanos;
+		this.attemptTimeoutMillis = attemptTimeoutMillis;
+		if (deadlineNanos != 0) {
+			context.setAttribute(RetryHandler.DEADLINE_ATTRIBUTE, Long.valueOf(deadlineNanos));
+		}
+	}
+
+	long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * The deadline has passed while the request runs: aborts the attempt in progress, whatever
+	 * it is blocked on, and keeps it from being retried.
+	 */
+	void expire() {
+		expired = true;
+		request.abort();
+	}
+
+	/**
+	 * Aborts the attempt in progress, if any, and suppresses every callback after this one.
+	 */
+	void cancel() {
+		if (cancelled) {
+			return;
+		}
+		cancelled = true;
+		request.abort();
+		if (responseHandler != null) {
+			responseHandler.sendCancelMessage();
+		}
+	}
+
+	private boolean isExpired() {
+		return expired || (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0);
+	}
+
+	/**
+	 * Cuts the attempt's connect, read and connection pool timeouts to the time left.
+	 */
+	private void applyDeadline() throws IOException {
+		if (deadlineNanos == 0) {
+			return;
+		}
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+		if (remaining <= 0 || expired) {
+			throw new DeadlineExceededException("Deadline exceeded for " + request.getURI());
+		}
+		int timeout = (int) Math.min(remaining, attemptTimeoutMillis);
+		HttpParams params = request.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, timeout);
+		HttpConnectionParams.setSoTimeout(params, timeout);
+		ConnManagerParams.setTimeout(params, remaining);
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -48,17 +181,66 @@ public class AsyncHttpRequest implements Runnable {
 
 			makeRequestWithRetries();
 
-			if (responseHandler != null) {
+			// 线程被中断时makeRequest不发任何回调, 流式的订阅者仍要收到终止信号; 已经结束的不会重复
+			if (isStreamingRequest && !cancelled && Thread.currentThread().isInterrupted()) {
+				request.abort();
+				responseHandler.sendFailureMessage(new InterruptedIOException("Request thread interrupted"), (byte[]) null);
+			}
+
+			// 交给解析线程池后, 由解析线程发送finish
+			if (responseHandler != null && !decodeHandedOff && !cancelled) {
 				responseHandler.sendFinishMessage();
 			}
 		} catch (IOException e) {
-			if (responseHandler != null) {
-				responseHandler.sendFinishMessage();
-				if (this.isBinaryRequest) {
-					responseHandler.sendFailureMessage(e, (byte[]) null);
-				} else {
-					responseHandler.sendFailureMessage(e, (String) null);
-				}
+			// 熔断, 本地的截止时间等客户端自己的失败不说明后端过载, failed只由makeRequest设置
+			sendFailure(e);
+		}
+	}
+
+	/**
+	 * Fails the request without sending it, e.g. when the dispatcher sheds it.
+	 */
+	void reject(IOException e) {
+		if (responseHandler != null) {
+			responseHandler.sendStartMessage();
+		}
+		sendFailure(e);
+	}
+
+	/**
+	 * Delivers the cached response, if there is one, without sending the request.
+	 *
+	 * @return false if nothing is cached for it
+	 */
+	boolean serveFromCache() {
+		String url = request.getURI().toString();
+		if (responseCache == null || isStreamingRequest || responseHandler == null || !responseCache.containsKey(url)) {
+			return false;
+		}
+		responseHandler.sendStartMessage();
+		responseHandler.sendResponseCache(responseCache, url);
+		responseHandler.sendFinishMessage();
+		return true;
+	}
+
+	/**
+	 * @return true if the last attempt failed with a network error, 5xx or 429
+	 */
+	boolean hasFailed() {
+		return failed;
+	}
+
+	boolean wasSent() {
+		return sent;
+	}
+
+	private void sendFailure(Throwable e) {
+		if (responseHandler != null && !cancelled) {
+			responseHandler.sendFinishMessage();
+			if (this.isBinaryRequest) {
+				responseHandler.sendFailureMessage(e, (byte[]) null);
+			} else {
+				responseHandler.sendFailureMessage(e, (String) null);
 			}
 		}
 	}
@@ -68,25 +250,26 @@ public class AsyncHttpRequest implements Runnable {
 			
 			//TODO：  如果 用户new了多个  KingHttpClient.cache缓存到disk时候,无法重新
 			// 获取cache
-		   	if(responseCache != null && responseCache.containsKey(request.getURI().toString())){
-		   		responseHandler.sendResponseCache(responseCache,request.getURI().toString());
-	    		return;
-	    	}
+			if (sendCachedResponse()) {
+				return;
+			}
 			
-			HttpResponse response = client.execute(request, context);
-			if (!Thread.currentThread().isInterrupted()) {
-				if (responseHandler != null) {
-					//放入cache
-			        int status = response.getStatusLine().getStatusCode();
-		            HttpEntity temp = response.getEntity();
-					if(responseCache != null && temp != null){
-						HttpEntity entity = new BufferedHttpEntity(temp);
-						byte[] bb = EntityUtils.toByteArray(entity);
-			            ResponseData responseData = new ResponseData(status, bb);
-			            responseCache.put(request.getURI().toString(), responseData);
-					}
-					//cache end
-					responseHandler.sendResponseMessage(response);
+			String host = beforeAttempt();
+			HttpResponse response;
+			try {
+				response = transport.execute(request, context);
+			} catch (IOException e) {
+				attemptFailed(host);
+				throw e;
+			}
+			recordResponse(host, response);
+			if (!Thread.currentThread().isInterrupted() && !cancelled) {
+				if (isStreamingRequest) {
+					// 按订阅者的需求边读边发, 不缓存整个body
+					((StreamingResponseHandler) responseHandler).sendStreamingResponse(request, response);
+				} else if (responseHandler != null) {
+					// I/O线程只读完body, 读完后连接即归还连接池
+					dispatchResponse(response, readBody(response));
 				}
 			} else {
 				// TODO: 是否要抛出InterruptedException?
@@ -95,20 +278,283 @@ public class AsyncHttpRequest implements Runnable {
 		}
 	}
 
-	private void makeRequestWithRetries() throws ConnectException {
+	private boolean sendCachedResponse() {
+		String url = request.getURI().toString();
+		if (responseCache != null && !isStreamingRequest && responseCache.containsKey(url)) {
+			responseHandler.sendResponseCache(responseCache, url);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the host the attempt goes to
+	 */
+	private String beforeAttempt() throws IOException {
+		// 缓存在前: 熔断打开时仍然可以用缓存里的旧结果
+		String host = request.getURI().getHost();
+		if (circuitBreaker != null && !circuitBreaker.allowRequest(host)) {
+			throw new CircuitOpenException(host);
+		}
+		applyDeadline();
+		sent = true;
+		return host;
+	}
+
+	private void attemptFailed(String host) {
+		// 主动取消不算后端的问题
+		failed = !request.isAborted() && !Thread.currentThread().isInterrupted();
+		if (circuitBreaker != null && failed) {
+			circuitBreaker.recordFailure(host);
+		}
+	}
+
+	private void recordResponse(String host, HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		boolean serverError = statusCode >= 500;
+		failed = serverError || statusCode == 429;
+		if (circuitBreaker != null) {
+			if (serverError) {
+				circuitBreaker.recordFailure(host);
+			} else {
+				circuitBreaker.recordSuccess(host);
+			}
+		}
+		if (retryBudget != null && !serverError) {
+			retryBudget.recordSuccess(host);
+		}
+		if (rateLimiter != null && (statusCode == 429 || statusCode == 503)) {
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			long pause = retryAfter == null ? -1 : RateLimiter.parseRetryAfter(retryAfter.getValue());
+			if (pause > 0) {
+				rateLimiter.pause(host, pause);
+			}
+		}
+	}
+
+	private byte[] readBody(HttpResponse response) throws IOException {
+		int status = response.getStatusLine().getStatusCode();
+		HttpEntity temp = response.getEntity();
+		byte[] responseBody = null;
+		if (temp != null) {
+			responseBody = EntityUtils.toByteArray(temp);
+		}
+		//放入cache
+		if(responseCache != null && responseBody != null){
+			ResponseData responseData = new ResponseData(status, responseBody);
+			responseCache.put(request.getURI().toString(), responseData);
+		}
+		//cache end
+		return responseBody;
+	}
+
+	/**
+	 * @return true if the request is sent through an {@link AsyncHttpTransport}, see {@link #runAsync}
+	 */
+	boolean canRunAsync() {
+		return transport instanceof AsyncHttpTransport && !isStreamingRequest;
+	}
+
+	/**
+	 * Like {@link #run()}, but returns as soon as the request is on its way instead of blocking
+	 * the thread until the response is in. <code>onDone</code> runs after the last callback, on
+	 * whichever thread finished the request.
+	 *
+	 * @param retryExecutor where failed attempts are handled; the retry handler sleeps there
+	 *        before a retry
+	 */
+	void runAsync(Executor retryExecutor, Runnable onDone) {
+		this.retryExecutor = retryExecutor;
+		this.onDone = onDone;
+		if (responseHandler != null) {
+			responseHandler.sendStartMessage();
+		}
+		attemptAsync();
+	}
+
+	private void attemptAsync() {
+		final String host;
+		try {
+			if (cancelled) {
+				asyncDone();
+				return;
+			}
+			if (sendCachedResponse()) {
+				if (responseHandler != null) {
+					responseHandler.sendFinishMessage();
+				}
+				asyncDone();
+				return;
+			}
+			host = beforeAttempt();
+		} catch (IOException e) {
+			sendFailure(e);
+			asyncDone();
+			return;
+		}
+		((AsyncHttpTransport) transport).executeAsync(request, context, new AsyncHttpTransport.Callback() {
+			@Override
+			public void completed(final HttpResponse response) {
+				// 在transport的线程上, 解析和回调交给解析线程池
+				handOff(decodeExecutor, new Runnable() {
+					@Override
+					public void run() {
+						asyncCompleted(host, response);
+					}
+				});
+			}
+
+			@Override
+			public void failed(final IOException e) {
+				handOff(retryExecutor, new Runnable() {
+					@Override
+					public void run() {
+						asyncFailed(host, e);
+					}
+				});
+			}
+		});
+	}
+
+	private static void handOff(Executor executor, Runnable task) {
+		if (executor != null) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// 线程池已关闭, 就地执行
+			}
+		}
+		task.run();
+	}
+
+	private void asyncCompleted(String host, HttpResponse response) {
+		try {
+			recordResponse(host, response);
+			if (responseHandler != null && !cancelled && deliver(response, readBody(response))) {
+				responseHandler.sendFinishMessage();
+			}
+		} catch (IOException e) {
+			sendFailure(e);
+		} finally {
+			asyncDone();
+		}
+	}
+
+	/**
+	 * The same decisions as {@link #makeRequestWithRetries()}, made after the fact.
+	 */
+	private void asyncFailed(String host, IOException e) {
+		attemptFailed(host);
+		if (cancelled) {
+			// abort引起的异常, 不重试也不回调
+			asyncDone();
+			return;
+		}
+		if (e instanceof UnknownHostException) {
+			if (responseHandler != null) {
+				responseHandler.sendFailureMessage(e, "can't resolve host");
+				responseHandler.sendFinishMessage();
+			}
+			asyncDone();
+			return;
+		}
+		if (isExpired()) {
+			DeadlineExceededException timeout = new DeadlineExceededException(
+					"Deadline exceeded for " + request.getURI());
+			timeout.initCause(e);
+			sendFailure(timeout);
+			asyncDone();
+			return;
+		}
+		if (retryHandler.retryRequest(e, ++executionCount, context)) {
+			attemptAsync();
+			return;
+		}
+		ConnectException ex = new ConnectException();
+		ex.initCause(e);
+		sendFailure(ex);
+		asyncDone();
+	}
+
+	private void asyncDone() {
+		Runnable done = onDone;
+		onDone = null;
+		if (done != null) {
+			done.run();
+		}
+	}
+
+	/**
+	 * Decodes the body and sends the success callback. Exceptions thrown by callbacks that run
+	 * on this thread are logged by the handler, so only decoding and binding failures end up
+	 * here.
+	 *
+	 * @return false if decoding failed, the failure has been sent instead
+	 */
+	private boolean deliver(HttpResponse response, byte[] responseBody) {
+		try {
+			responseHandler.sendResponseMessage(response, responseBody);
+		} catch (RuntimeException e) {
+			// 解析出错也要发FINISH和失败, 否则调用方一直等下去
+			sendFailure(e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hands the drained body to the decode stage. String/JSON decoding and the callback that
+	 * follows then never run on a thread that is holding a pooled connection.
+	 */
+	private void dispatchResponse(final HttpResponse response, final byte[] responseBody) {
+		if (decodeExecutor != null) {
+			try {
+				decodeExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						// 排队等解析期间被取消
+						if (!cancelled && deliver(response, responseBody)) {
+							responseHandler.sendFinishMessage();
+						}
+					}
+				});
+				decodeHandedOff = true;
+				return;
+			} catch (RejectedExecutionException e) {
+				// 解析线程池已关闭, 在当前线程解析
+			}
+		}
+		responseHandler.sendResponseMessage(response, responseBody);
+	}
+
+	private void makeRequestWithRetries() throws IOException {
 		boolean retry = true;
 		IOException cause = null;
-		HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
 		while (retry) {
 			try {
 				makeRequest();
 				return;
 			} catch (UnknownHostException e) {
-				if (responseHandler != null) {
+				if (responseHandler != null && !cancelled) {
 					responseHandler.sendFailureMessage(e, "can't resolve host");
 				}
 				return;
+			} catch (CircuitOpenException e) {
+				// 熔断中, 重试也不会发出去
+				throw e;
 			} catch (IOException e) {
+				if (cancelled) {
+					// abort引起的异常, 不重试也不回调
+					return;
+				}
+				if (isExpired()) {
+					// 调用方已经不再等待, 不再重试
+					DeadlineExceededException timeout = new DeadlineExceededException(
+							"Deadline exceeded for " + request.getURI());
+					timeout.initCause(e);
+					throw timeout;
+				}
 				cause = e;
 				retry = retryHandler.retryRequest(cause, ++executionCount,
 						context);
@@ -0,0 +1,39 @@
+package com.king.http;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An {@link HttpTransport} that can complete requests without a thread waiting for them.
+ * {@link AsyncHttpRequest} uses it for every request that is not streamed: the worker that sends
+ * the request returns right away, and decoding and the retry decision run once the response or
+ * failure has arrived.
+ *
+ * The same rules as for {@link HttpTransport} apply: {@link HttpUriRequest#abort()} must fail the
+ * exchange, and the <code>ExecutionContext</code> attributes must be set before the callback runs.
+ */
+public interface AsyncHttpTransport extends HttpTransport {
+
+    /**
+     * Sends the request and returns without waiting for the response. Exactly one callback
+     * method is called, possibly before this method returns; failures are never thrown.
+     */
+    void executeAsync(HttpUriRequest request, HttpContext context, Callback callback);
+
+    /**
+     * Called on a transport thread, e.g. an event loop, which must not be held up: implementations
+     * only hand the outcome over to another thread.
+     */
+    interface Callback {
+
+        /**
+         * @param response its entity, if any, has been read completely and is held in memory
+         */
+        void completed(HttpResponse response);
+
+        void failed(IOException e);
+    }
+}
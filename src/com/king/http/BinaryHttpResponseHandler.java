@@ -1,14 +1,9 @@
 package com.king.http;
 
-import java.io.IOException;
-
 import org.apache.http.Header;
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.util.EntityUtils;
 
 import com.king.http.cache.HttpResponseCache;
 import com.king.http.cache.CachedHttpResponse.ResponseData;
@@ -107,13 +102,12 @@ public class BinaryHttpResponseHandler extends HttpResponseHandler {
     }
 
     @Override
-    void sendResponseMessage(HttpResponse response) {
+    void sendResponseMessage(HttpResponse response, byte[] responseBody) {
         StatusLine status = response.getStatusLine();
         Header[] contentTypeHeaders = response.getHeaders("Content-Type");
-        byte[] responseBody = null;
         if(contentTypeHeaders.length != 1) {
             //malformed/ambiguous HTTP Header, ABORT!
-            sendFailureMessage(new HttpResponseException(status.getStatusCode(), "None, or more than one, Content-Type Header found!"), responseBody);
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), "None, or more than one, Content-Type Header found!"), (byte[]) null);
             return;
         }
         Header contentTypeHeader = contentTypeHeaders[0];
@@ -125,19 +119,9 @@ public class BinaryHttpResponseHandler extends HttpResponseHandler {
         }
         if(!foundAllowedContentType) {
             //Content-Type not in allowed list, ABORT!
-            sendFailureMessage(new HttpResponseException(status.getStatusCode(), "Content-Type not allowed!"), responseBody);
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), "Content-Type not allowed!"), (byte[]) null);
             return;
         }
-        try {
-            HttpEntity entity = null;
-            HttpEntity temp = response.getEntity();
-            if(temp != null) {
-                entity = new BufferedHttpEntity(temp);
-            }
-            responseBody = EntityUtils.toByteArray(entity);
-        } catch(IOException e) {
-            sendFailureMessage(e, (byte[]) null);
-        }
 
         if(status.getStatusCode() >= 300) {
             sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), responseBody);
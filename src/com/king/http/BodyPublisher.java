@@ -0,0 +1,12 @@
+package com.king.http;
+
+/**
+ * A cold, single-subscriber publisher of a response body, shaped after the reactive-streams
+ * <code>Publisher</code>. The request is sent when {@link #subscribe} is called, and the body
+ * is only read from the socket as the subscriber signals demand through
+ * {@link BodySubscription#request(long)}.
+ */
+public interface BodyPublisher {
+
+    void subscribe(BodySubscriber subscriber);
+}
@@ -0,0 +1,25 @@
+package com.king.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a streamed response body from a {@link BodyPublisher}, shaped after the
+ * reactive-streams <code>Subscriber</code>. Signals are serialized: after
+ * {@link #onSubscribe} they all arrive on the request thread.
+ *
+ * A response status >= 300 is signalled as {@link #onError} with an
+ * {@link org.apache.http.client.HttpResponseException}.
+ */
+public interface BodySubscriber {
+
+    void onSubscribe(BodySubscription subscription);
+
+    /**
+     * @param chunk a buffer the subscriber owns; it is not reused
+     */
+    void onNext(ByteBuffer chunk);
+
+    void onError(Throwable error);
+
+    void onComplete();
+}
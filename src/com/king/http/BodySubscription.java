@@ -0,0 +1,19 @@
+package com.king.http;
+
+/**
+ * Demand channel between a {@link BodySubscriber} and its {@link BodyPublisher}, shaped after
+ * the reactive-streams <code>Subscription</code>.
+ */
+public interface BodySubscription {
+
+    /**
+     * Allows up to <code>n</code> more chunks to be read and delivered. Demand is additive;
+     * a non-positive <code>n</code> fails the stream.
+     */
+    void request(long n);
+
+    /**
+     * Stops the stream and aborts the connection. No further signals are delivered.
+     */
+    void cancel();
+}
@@ -0,0 +1,216 @@
+package com.king.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory DNS cache in front of another resolver.
+ *
+ * Answers are kept for <code>ttlMillis</code>; neither Java nor Android exposes the record's
+ * own TTL, so it is a fixed value chosen well below what CDNs usually hand out. Once
+ * {@link #REFRESH_FRACTION} of that has passed the next lookup still returns the cached
+ * addresses but starts a refresh in the background, so a busy host never waits for DNS again.
+ * Failed lookups are remembered for <code>negativeTtlMillis</code> so a host that does not
+ * resolve fails fast instead of blocking every retry. Concurrent lookups of a host that is not
+ * cached share one query.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 5 * 1000;
+    public static final float REFRESH_FRACTION = 0.75f;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final ExecutorService REFRESH_EXECUTOR =
+            Executors.newCachedThreadPool(new KingThreadFactory("king-dns"));
+
+    private final DnsResolver delegate;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Executor refreshExecutor;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    // 正在查询的host, 同一个host的并发查询共用一次结果
+    private final ConcurrentHashMap<String, FutureTask<InetAddress[]>> lookups =
+            new ConcurrentHashMap<String, FutureTask<InetAddress[]>>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public CachingDnsResolver() {
+        this(SYSTEM, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    public CachingDnsResolver(DnsResolver delegate, long ttlMillis, long negativeTtlMillis) {
+        this(delegate, ttlMillis, negativeTtlMillis, REFRESH_EXECUTOR);
+    }
+
+    /**
+     * @param refreshExecutor runs the background refreshes of entries close to expiry
+     */
+    public CachingDnsResolver(DnsResolver delegate, long ttlMillis, long negativeTtlMillis, Executor refreshExecutor) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL must be positive");
+        }
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(host);
+        if (entry != null && now < entry.expiresAt) {
+            hits.incrementAndGet();
+            if (entry.addresses == null) {
+                throw new UnknownHostException(host + " (cached)");
+            }
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+                refreshLater(host, entry);
+            }
+            return entry.addresses.clone();
+        }
+        misses.incrementAndGet();
+        return lookup(host).clone();
+    }
+
+    private void refreshLater(final String host, final Entry entry) {
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(host);
+                    } catch (UnknownHostException e) {
+                        // 旧结果保留到过期, 之后的查询可以再次刷新
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private InetAddress[] lookup(final String host) throws UnknownHostException {
+        FutureTask<InetAddress[]> task = new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            @Override
+            public InetAddress[] call() throws UnknownHostException {
+                return query(host);
+            }
+        });
+        FutureTask<InetAddress[]> running = lookups.putIfAbsent(host, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                lookups.remove(host, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + " (interrupted)");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private InetAddress[] query(String host) throws UnknownHostException {
+        InetAddress[] addresses;
+        try {
+            addresses = delegate.resolve(host);
+        } catch (UnknownHostException e) {
+            long now = System.currentTimeMillis();
+            Entry current = cache.get(host);
+            // 只在没有可用结果时记下失败; 后台刷新失败时旧结果还有效, 不能被覆盖
+            if (negativeTtlMillis > 0 && (current == null || current.addresses == null || now >= current.expiresAt)) {
+                put(host, new Entry(null, now + negativeTtlMillis, Long.MAX_VALUE));
+            }
+            throw e;
+        }
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        // 从拿到结果开始计时, 不算查询本身花的时间
+        long now = System.currentTimeMillis();
+        put(host, new Entry(addresses, now + ttlMillis, now + (long) (ttlMillis * REFRESH_FRACTION)));
+        return addresses;
+    }
+
+    private void put(String host, Entry entry) {
+        if (cache.size() >= MAX_ENTRIES) {
+            purgeExpired();
+        }
+        cache.put(host, entry);
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (now >= it.next().expiresAt) {
+                it.remove();
+            }
+        }
+        // 全都没过期就整个清掉, 不值得为这个做LRU
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Forgets a host, e.g. after connecting to all of its addresses failed.
+     */
+    public void invalidate(String host) {
+        cache.remove(host);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+
+        // null表示查询失败的缓存
+        final InetAddress[] addresses;
+        final long expiresAt;
+        final long refreshAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
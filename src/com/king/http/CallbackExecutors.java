@@ -0,0 +1,112 @@
+package com.king.http;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Factory for the executors that {@link HttpResponseHandler} callbacks can be dispatched on.
+ * For example:
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * // coalesce every completion arriving within one frame into a single main-thread message
+ * client.setCallbackExecutor(CallbackExecutors.mainThreadBatching());
+ */
+public final class CallbackExecutors {
+
+    /** One frame at 60fps. */
+    public static final long FRAME_MILLIS = 16;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * Runs callbacks on whatever thread produced them (the request or decode thread).
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Posts every callback to the given looper as its own message.
+     */
+    public static Executor looper(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    public static Executor mainThread() {
+        return looper(Looper.getMainLooper());
+    }
+
+    /**
+     * Collects callbacks for up to <code>windowMillis</code> and runs them all from a single
+     * message on the given looper, in the order they were submitted.
+     */
+    public static Executor batching(Looper looper, long windowMillis) {
+        return new BatchingExecutor(new Handler(looper), windowMillis);
+    }
+
+    public static Executor mainThreadBatching() {
+        return batching(Looper.getMainLooper(), FRAME_MILLIS);
+    }
+
+    private static final class BatchingExecutor implements Executor, Runnable {
+
+        private final Handler handler;
+        private final long windowMillis;
+        // pending只在锁内修改, draining只在looper线程使用, 两个list来回交换避免每帧重新分配
+        private ArrayList<Runnable> pending = new ArrayList<Runnable>();
+        private ArrayList<Runnable> draining = new ArrayList<Runnable>();
+        private boolean scheduled;
+
+        BatchingExecutor(Handler handler, long windowMillis) {
+            this.handler = handler;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                pending.add(command);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            handler.postDelayed(this, windowMillis);
+        }
+
+        @Override
+        public void run() {
+            ArrayList<Runnable> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = draining;
+                draining = batch;
+                scheduled = false;
+            }
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).run();
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
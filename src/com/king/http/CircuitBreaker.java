@@ -0,0 +1,221 @@
+package com.king.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-host circuit breaker. Every host has a window of its last <code>windowSize</code>
+ * results; once at least <code>minimumCalls</code> are in it and the share of failures
+ * (I/O errors and 5xx responses) reaches <code>failureRateThreshold</code>, the circuit
+ * opens and requests to that host fail at once with {@link CircuitOpenException} instead of
+ * waiting out connect timeouts and retries.
+ *
+ * After <code>openMillis</code> the circuit goes half-open and lets {@link #DEFAULT_PROBES}
+ * requests through: if they all succeed it closes with an empty window, if one fails it opens
+ * again.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.setCircuitBreaker(new CircuitBreaker());
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+    public static final int DEFAULT_PROBES = 2;
+
+    private final int windowSize;
+    private final float failureRateThreshold;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final int probes;
+    private final ConcurrentHashMap<String, HostCircuit> circuits = new ConcurrentHashMap<String, HostCircuit>();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_MINIMUM_CALLS, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureRateThreshold share of failed calls in the window, between 0 and 1, that opens the circuit
+     * @param openMillis how long an open circuit rejects requests before letting probes through
+     */
+    public CircuitBreaker(int windowSize, float failureRateThreshold, int minimumCalls, long openMillis) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("Need 0 < minimumCalls <= windowSize");
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("Failure rate threshold must be in (0, 1]");
+        }
+        this.windowSize = windowSize;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = minimumCalls;
+        this.openMillis = openMillis;
+        this.probes = DEFAULT_PROBES;
+    }
+
+    /**
+     * @return false if the host's circuit is open and the request should not be sent
+     */
+    public boolean allowRequest(String host) {
+        if (circuit(host).allow(System.currentTimeMillis())) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void recordSuccess(String host) {
+        circuit(host).record(true, System.currentTimeMillis());
+    }
+
+    public void recordFailure(String host) {
+        circuit(host).record(false, System.currentTimeMillis());
+    }
+
+    public State getState(String host) {
+        HostCircuit circuit = circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.currentState(System.currentTimeMillis());
+    }
+
+    /**
+     * @return requests failed fast because their host's circuit was open
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Closes every circuit, e.g. after the network changed.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    private HostCircuit circuit(String host) {
+        HostCircuit circuit = circuits.get(host);
+        if (circuit == null) {
+            HostCircuit created = new HostCircuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    private final class HostCircuit {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        // 最近windowSize次结果的环形缓冲, true为失败
+        private final boolean[] window = new boolean[windowSize];
+        private int next;
+        private int calls;
+        private int failures;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int probesStarted;
+        private int probesSucceeded;
+
+        boolean allow(long now) {
+            lock.lock();
+            try {
+                switch (state(now)) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    // 探测请求被取消了不会回报结果, 半开太久就重新放探测请求
+                    if (probesStarted < probes || now - openedAt >= 2 * openMillis) {
+                        if (probesStarted >= probes) {
+                            openedAt = now - openMillis;
+                            probesStarted = 0;
+                            probesSucceeded = 0;
+                        }
+                        probesStarted++;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void record(boolean success, long now) {
+            lock.lock();
+            try {
+                State current = state(now);
+                if (current == State.HALF_OPEN) {
+                    if (!success) {
+                        open(now);
+                    } else if (++probesSucceeded >= probes) {
+                        close();
+                    }
+                    return;
+                }
+                if (current == State.OPEN) {
+                    // 打开之前就发出的请求, 结果不再计入
+                    return;
+                }
+                if (calls == windowSize) {
+                    if (window[next]) {
+                        failures--;
+                    }
+                } else {
+                    calls++;
+                }
+                window[next] = !success;
+                if (!success) {
+                    failures++;
+                }
+                next = (next + 1) % windowSize;
+                if (calls >= minimumCalls && failures >= failureRateThreshold * calls) {
+                    open(now);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        State currentState(long now) {
+            lock.lock();
+            try {
+                return state(now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves an open circuit to half-open once its time is up; caller holds the lock.
+         */
+        private State state(long now) {
+            if (state == State.OPEN && now - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                probesStarted = 0;
+                probesSucceeded = 0;
+            }
+            return state;
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            next = 0;
+            calls = 0;
+            failures = 0;
+        }
+    }
+}
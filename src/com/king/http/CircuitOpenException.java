@@ -0,0 +1,23 @@
+package com.king.http;
+
+import java.io.IOException;
+
+/**
+ * A request failed fast, without being sent, because the {@link CircuitBreaker} for its host
+ * is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public CircuitOpenException(String host) {
+        super("Circuit open for " + host);
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+}
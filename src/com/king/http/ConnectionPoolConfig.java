@@ -0,0 +1,215 @@
+package com.king.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Sizing and housekeeping of the connection pool behind {@link KingHttpClient}.
+ *
+ * ConnectionPoolConfig config = ConnectionPoolConfig.newBuilder()
+ *         .maxTotal(20)
+ *         .maxPerRoute(4)
+ *         .maxForHost("api.example.com", 12)
+ *         .keepAliveMillis(60 * 1000)
+ *         .build();
+ * KingHttpClient client = new KingHttpClient(config);
+ */
+public final class ConnectionPoolConfig {
+
+    public static final int DEFAULT_MAX_TOTAL = 10;
+    public static final int DEFAULT_MAX_PER_ROUTE = 10;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_REAPER_INTERVAL_MILLIS = 5 * 1000;
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = SessionCachingSSLSocketFactory.DEFAULT_MAX_SESSIONS;
+    public static final long DEFAULT_TLS_SESSION_LIFETIME_MILLIS = SessionCachingSSLSocketFactory.DEFAULT_SESSION_LIFETIME_MILLIS;
+
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final Map<HttpHost, Integer> hostLimits;
+    private final long keepAliveMillis;
+    private final long idleTimeoutMillis;
+    private final long reaperIntervalMillis;
+    private final boolean staleCheckingEnabled;
+    private final int tlsSessionCacheSize;
+    private final long tlsSessionLifetimeMillis;
+
+    private ConnectionPoolConfig(Builder builder) {
+        maxTotal = builder.maxTotal;
+        maxPerRoute = builder.maxPerRoute;
+        hostLimits = new LinkedHashMap<HttpHost, Integer>(builder.hostLimits);
+        keepAliveMillis = builder.keepAliveMillis;
+        idleTimeoutMillis = builder.idleTimeoutMillis;
+        reaperIntervalMillis = builder.reaperIntervalMillis;
+        staleCheckingEnabled = builder.staleCheckingEnabled;
+        tlsSessionCacheSize = builder.tlsSessionCacheSize;
+        tlsSessionLifetimeMillis = builder.tlsSessionLifetimeMillis;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getReaperIntervalMillis() {
+        return reaperIntervalMillis;
+    }
+
+    public boolean isStaleCheckingEnabled() {
+        return staleCheckingEnabled;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public long getTlsSessionLifetimeMillis() {
+        return tlsSessionLifetimeMillis;
+    }
+
+    /**
+     * Per-route limits for ConnManagerParams, with the host overrides applied.
+     */
+    ConnPerRouteBean toConnPerRoute() {
+        ConnPerRouteBean connPerRoute = new ConnPerRouteBean(maxPerRoute);
+        for (Map.Entry<HttpHost, Integer> entry : hostLimits.entrySet()) {
+            HttpHost host = entry.getKey();
+            boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+            connPerRoute.setMaxForRoute(new HttpRoute(host, null, secure), entry.getValue());
+            // 没写端口的URL, 路由里的端口是-1
+            HttpHost withoutPort = new HttpHost(host.getHostName(), -1, host.getSchemeName());
+            connPerRoute.setMaxForRoute(new HttpRoute(withoutPort, null, secure), entry.getValue());
+        }
+        return connPerRoute;
+    }
+
+    public static final class Builder {
+
+        private int maxTotal = DEFAULT_MAX_TOTAL;
+        private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+        private final Map<HttpHost, Integer> hostLimits = new LinkedHashMap<HttpHost, Integer>();
+        private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+        private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        private long reaperIntervalMillis = DEFAULT_REAPER_INTERVAL_MILLIS;
+        private boolean staleCheckingEnabled = true;
+        private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+        private long tlsSessionLifetimeMillis = DEFAULT_TLS_SESSION_LIFETIME_MILLIS;
+
+        private Builder() {
+        }
+
+        /**
+         * Connections in the pool across all hosts.
+         */
+        public Builder maxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        /**
+         * Connections per host unless overridden with {@link #maxForHost}.
+         */
+        public Builder maxPerRoute(int maxPerRoute) {
+            this.maxPerRoute = maxPerRoute;
+            return this;
+        }
+
+        /**
+         * Overrides the per-route limit for a host on both http:80 and https:443.
+         */
+        public Builder maxForHost(String hostname, int max) {
+            maxForRoute(new HttpHost(hostname, 80, "http"), max);
+            maxForRoute(new HttpHost(hostname, 443, "https"), max);
+            return this;
+        }
+
+        public Builder maxForRoute(HttpHost target, int max) {
+            hostLimits.put(target, max);
+            return this;
+        }
+
+        /**
+         * Upper bound for keeping a released connection; a shorter
+         * <code>Keep-Alive: timeout</code> from the server wins. 0 keeps it until the idle timeout.
+         */
+        public Builder keepAliveMillis(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+            return this;
+        }
+
+        /**
+         * Connections unused for longer than this are closed by the reaper.
+         */
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * How often the reaper runs, 0 disables it.
+         */
+        public Builder reaperIntervalMillis(long reaperIntervalMillis) {
+            this.reaperIntervalMillis = reaperIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Checks a pooled connection for a server side close before reusing it. Costs a
+         * short read per request, saves a failed request and retry on half-closed sockets.
+         */
+        public Builder staleCheckingEnabled(boolean staleCheckingEnabled) {
+            this.staleCheckingEnabled = staleCheckingEnabled;
+            return this;
+        }
+
+        /**
+         * Hosts whose TLS session is kept so new connections can skip the full handshake.
+         */
+        public Builder tlsSessionCacheSize(int tlsSessionCacheSize) {
+            this.tlsSessionCacheSize = tlsSessionCacheSize;
+            return this;
+        }
+
+        /**
+         * How long after a full handshake its session may be resumed.
+         */
+        public Builder tlsSessionLifetimeMillis(long tlsSessionLifetimeMillis) {
+            this.tlsSessionLifetimeMillis = tlsSessionLifetimeMillis;
+            return this;
+        }
+
+        public ConnectionPoolConfig build() {
+            if (maxTotal <= 0 || maxPerRoute <= 0) {
+                throw new IllegalArgumentException("Connection limits must be positive");
+            }
+            for (Integer max : hostLimits.values()) {
+                if (max <= 0) {
+                    throw new IllegalArgumentException("Connection limits must be positive");
+                }
+            }
+            if (tlsSessionCacheSize <= 0 || tlsSessionLifetimeMillis <= 0) {
+                throw new IllegalArgumentException("TLS session cache size and lifetime must be positive");
+            }
+            return new ConnectionPoolConfig(this);
+        }
+    }
+}
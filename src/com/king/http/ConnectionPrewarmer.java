@@ -0,0 +1,201 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.SharedPreferences;
+
+/**
+ * Opens keep-alive connections, TLS handshake included, and parks them in the client's pool
+ * before the first request needs them. As a request interceptor it notices when a request
+ * goes out on one of those connections, and in automatic mode remembers the hosts of this
+ * session so the next one can prewarm them at startup.
+ */
+final class ConnectionPrewarmer implements HttpRequestInterceptor {
+
+    static final String PREFERENCES_NAME = "king_http_prewarm";
+    private static final String KEY_HOSTS = "hosts";
+    private static final int MAX_REMEMBERED_HOSTS = 8;
+
+    private final DefaultHttpClient httpClient;
+    private final long keepAliveMillis;
+    // 预热连接的标识(远端地址:端口#本地端口) -> 预热时间
+    private final Map<String, Long> parked = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger prewarmedCount = new AtomicInteger();
+    private final AtomicInteger reusedCount = new AtomicInteger();
+    private final Set<String> sessionHosts = new LinkedHashSet<String>();
+    private volatile SharedPreferences preferences;
+    private volatile Executor persistExecutor;
+
+    ConnectionPrewarmer(DefaultHttpClient httpClient, long keepAliveMillis) {
+        this.httpClient = httpClient;
+        this.keepAliveMillis = keepAliveMillis > 0 ? keepAliveMillis : ConnectionPoolConfig.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Blocks until the connections are open and back in the pool.
+     *
+     * @param host bare host name (https is assumed) or a URL with scheme and port
+     * @return number of connections newly opened; idle ones already pooled are not counted
+     */
+    int prewarm(String host, int count) throws IOException {
+        URI uri = URI.create(host.indexOf("://") > 0 ? host : "https://" + host);
+        HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        HttpContext context = new BasicHttpContext();
+        HttpRoute route;
+        try {
+            // 和真实请求走同一个route planner, 保证连接能被复用
+            route = httpClient.getRoutePlanner().determineRoute(target, new HttpGet(uri), context);
+        } catch (HttpException e) {
+            throw new IOException(e.getMessage());
+        }
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        HttpParams params = httpClient.getParams();
+        int max = Math.min(count, ConnManagerParams.getMaxConnectionsPerRoute(params).getMaxForRoute(route));
+        long timeout = ConnManagerParams.getTimeout(params);
+        purgeExpired();
+
+        // 先全部借出来再一起归还, 否则池子会把同一条连接反复借给我们
+        List<ManagedClientConnection> borrowed = new ArrayList<ManagedClientConnection>(max);
+        int opened = 0;
+        IOException failure = null;
+        try {
+            for (int i = 0; i < max; i++) {
+                ManagedClientConnection connection;
+                try {
+                    connection = cm.requestConnection(route, null).getConnection(timeout, TimeUnit.MILLISECONDS);
+                } catch (ConnectionPoolTimeoutException e) {
+                    break;
+                }
+                borrowed.add(connection);
+                if (!connection.isOpen()) {
+                    connection.open(route, context, params);
+                    parked.put(key(connection), System.currentTimeMillis());
+                    opened++;
+                }
+                // 不标记的话归还时连接会被关掉
+                connection.markReusable();
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            for (ManagedClientConnection connection : borrowed) {
+                cm.releaseConnection(connection, keepAliveMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        prewarmedCount.addAndGet(opened);
+        if (failure != null && opened == 0) {
+            throw failure;
+        }
+        return opened;
+    }
+
+    /**
+     * Starts remembering this session's hosts and returns the ones remembered last time.
+     */
+    List<String> startSession(SharedPreferences preferences, Executor persistExecutor) {
+        List<String> previous = new ArrayList<String>();
+        String stored = preferences.getString(KEY_HOSTS, null);
+        if (stored != null) {
+            for (String host : stored.split("\n")) {
+                if (host.length() > 0) {
+                    previous.add(host);
+                }
+            }
+        }
+        this.persistExecutor = persistExecutor;
+        this.preferences = preferences;
+        return previous;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (!parked.isEmpty() && connection instanceof HttpInetConnection) {
+            Long parkedAt = parked.remove(key((HttpInetConnection) connection));
+            if (parkedAt != null && System.currentTimeMillis() - parkedAt < keepAliveMillis) {
+                reusedCount.incrementAndGet();
+            }
+        }
+        Object target = context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        if (preferences != null && target instanceof HttpHost) {
+            remember(((HttpHost) target).toURI());
+        }
+    }
+
+    private void remember(String host) {
+        final String joined;
+        synchronized (sessionHosts) {
+            if (sessionHosts.size() >= MAX_REMEMBERED_HOSTS || !sessionHosts.add(host)) {
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String h : sessionHosts) {
+                sb.append(h).append('\n');
+            }
+            joined = sb.toString();
+        }
+        // 每个host每次会话只写一次, 放到后台线程提交
+        persistExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                preferences.edit().putString(KEY_HOSTS, joined).commit();
+            }
+        });
+    }
+
+    int getPrewarmedCount() {
+        return prewarmedCount.get();
+    }
+
+    int getReusedCount() {
+        return reusedCount.get();
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> it = parked.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() >= keepAliveMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String key(HttpInetConnection connection) {
+        InetAddress remote = connection.getRemoteAddress();
+        return (remote != null ? remote.getHostAddress() : "?") + ":" + connection.getRemotePort()
+                + "#" + connection.getLocalPort();
+    }
+}
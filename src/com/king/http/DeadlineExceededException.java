@@ -0,0 +1,16 @@
+package com.king.http;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A request did not complete within the timeout set with {@link RequestOptions.Builder#timeout},
+ * counting the time it waited in the client, every attempt and the retry pauses between them.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
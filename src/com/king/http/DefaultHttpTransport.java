@@ -0,0 +1,39 @@
+package com.king.http;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * {@link HttpTransport} backed by a blocking <code>AbstractHttpClient</code>, one thread per
+ * in-flight request.
+ */
+public class DefaultHttpTransport implements HttpTransport {
+
+    private final AbstractHttpClient client;
+
+    public DefaultHttpTransport(AbstractHttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return client.execute(request, context);
+    }
+
+    /**
+     * @return true if requests go through the given client, whose connection pool other
+     *         transports may still use
+     */
+    boolean uses(AbstractHttpClient client) {
+        return this.client == client;
+    }
+
+    @Override
+    public void shutdown() {
+        client.getConnectionManager().shutdown();
+    }
+}
@@ -0,0 +1,26 @@
+package com.king.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Looks up the addresses connections to a host are made to, see
+ * {@link KingHttpClient#setDnsResolver(DnsResolver)}.
+ */
+public interface DnsResolver {
+
+    /**
+     * Plain blocking lookup through the platform, no caching beyond the VM's own.
+     */
+    DnsResolver SYSTEM = new DnsResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * @return at least one address, in the order they should be tried
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,102 @@
+package com.king.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+
+import com.google.common.base.Function;
+import com.king.http.cache.CachedHttpResponse.ResponseData;
+import com.king.http.cache.HttpResponseCache;
+
+/**
+ * Completes a {@link ResponseFuture} instead of posting callbacks. Runs entirely on the
+ * request/decode threads, there is nothing to hop back to a looper for.
+ *
+ * With a converter, status codes >= 300 fail the future with an {@link HttpResponseException};
+ * without one, every response completes it and the caller inspects the status.
+ */
+class FutureResponseHandler<T> extends HttpResponseHandler {
+
+    private static final Function<Response, Response> IDENTITY = new Function<Response, Response>() {
+        @Override
+        public Response apply(Response response) {
+            return response;
+        }
+    };
+
+    private final ResponseFuture<T> future;
+    private final Function<Response, T> converter;
+    private final boolean failOnErrorStatus;
+
+    FutureResponseHandler(ResponseFuture<T> future, Function<Response, T> converter) {
+        this(future, converter, true);
+    }
+
+    private FutureResponseHandler(ResponseFuture<T> future, Function<Response, T> converter,
+            boolean failOnErrorStatus) {
+        this.future = future;
+        this.converter = converter;
+        this.failOnErrorStatus = failOnErrorStatus;
+        setCallbackExecutor(CallbackExecutors.direct());
+    }
+
+    static FutureResponseHandler<Response> forResponse(ResponseFuture<Response> future) {
+        return new FutureResponseHandler<Response>(future, IDENTITY, false);
+    }
+
+    @Override
+    protected void sendStartMessage() {
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        future.completeExceptionally(e);
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        future.completeExceptionally(e);
+    }
+
+    @Override
+    void sendCancelMessage() {
+        future.cancel(false);
+    }
+
+    @Override
+    void sendResponseCache(HttpResponseCache responseCache, String url) {
+        ResponseData responseData = responseCache.get(url);
+        complete(new Response(responseData.getStatusCode(), null, null, responseData.getResponseBody(), null));
+    }
+
+    @Override
+    void sendResponseMessage(HttpResponse response, byte[] responseBody) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        String charset = entity != null ? EntityUtils.getContentCharSet(entity) : null;
+        complete(new Response(status.getStatusCode(), status.getReasonPhrase(), response.getAllHeaders(),
+                responseBody, charset));
+    }
+
+    private void complete(Response response) {
+        if (failOnErrorStatus && response.getStatusCode() >= 300) {
+            future.completeExceptionally(new HttpResponseException(response.getStatusCode(),
+                    response.getReasonPhrase()));
+            return;
+        }
+        T value;
+        try {
+            value = converter.apply(response);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        future.complete(value);
+    }
+}
@@ -0,0 +1,277 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Plain socket factory that races connects to a host's addresses (RFC 8305, "happy eyeballs").
+ * The addresses are tried alternating between IPv6 and IPv4, a new attempt starting every
+ * {@link #setAttemptDelayMillis(long) attemptDelay} or as soon as the previous one fails; the
+ * first connection made wins and the other attempts are closed. A dead first address then costs
+ * a quarter of a second instead of the whole connect timeout.
+ *
+ * The family that won is remembered per host and tried first next time.
+ */
+public class HappyEyeballsSocketFactory implements SocketFactory {
+
+    public static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+    private static final int MAX_REMEMBERED_HOSTS = 256;
+
+    private static final ExecutorService CONNECT_EXECUTOR =
+            Executors.newCachedThreadPool(new KingThreadFactory("king-connect"));
+
+    private volatile DnsResolver dnsResolver;
+    private volatile long attemptDelayMillis = DEFAULT_ATTEMPT_DELAY_MILLIS;
+    // host -> 上次连接成功的是不是IPv6
+    private final ConcurrentHashMap<String, Boolean> preferIpv6 = new ConcurrentHashMap<String, Boolean>();
+
+    public HappyEyeballsSocketFactory() {
+        this(DnsResolver.SYSTEM);
+    }
+
+    public HappyEyeballsSocketFactory(DnsResolver dnsResolver) {
+        setDnsResolver(dnsResolver);
+    }
+
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("DNS resolver may not be null");
+        }
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Head start each address gets before the next one is tried as well, RFC 8305 recommends 250 ms.
+     */
+    public void setAttemptDelayMillis(long attemptDelayMillis) {
+        this.attemptDelayMillis = Math.max(10, attemptDelayMillis);
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new Socket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+            HttpParams params) throws IOException {
+        if (host == null) {
+            throw new IllegalArgumentException("Target host may not be null");
+        }
+        if (params == null) {
+            throw new IllegalArgumentException("Parameters may not be null");
+        }
+        Socket first = sock != null ? sock : createSocket();
+        InetSocketAddress local = localAddress != null || localPort > 0
+                ? new InetSocketAddress(localAddress, Math.max(localPort, 0)) : null;
+        int connectTimeout = HttpConnectionParams.getConnectionTimeout(params);
+        InetAddress[] addresses;
+        try {
+            addresses = order(host, dnsResolver.resolve(host));
+        } catch (IOException e) {
+            first.close();
+            throw e;
+        }
+        Socket socket = addresses.length == 1
+                ? connect(first, addresses[0], port, local, connectTimeout)
+                : race(first, addresses, port, local, connectTimeout);
+        socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        if (preferIpv6.size() >= MAX_REMEMBERED_HOSTS) {
+            preferIpv6.clear();
+        }
+        preferIpv6.put(host, socket.getInetAddress() instanceof Inet6Address);
+        return socket;
+    }
+
+    @Override
+    public boolean isSecure(Socket sock) {
+        return false;
+    }
+
+    /**
+     * Interleaves the families, starting with the one that won last time or else the one the
+     * resolver listed first.
+     */
+    private InetAddress[] order(String host, InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        Boolean ipv6 = preferIpv6.get(host);
+        boolean ipv6First = ipv6 != null ? ipv6 : addresses[0] instanceof Inet6Address;
+        LinkedList<InetAddress> preferred = new LinkedList<InetAddress>();
+        LinkedList<InetAddress> other = new LinkedList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == ipv6First) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        for (int i = 0; i < ordered.length; i++) {
+            ordered[i] = (i % 2 == 0 && !preferred.isEmpty()) || other.isEmpty()
+                    ? preferred.removeFirst() : other.removeFirst();
+        }
+        return ordered;
+    }
+
+    private static Socket connect(Socket socket, InetAddress address, int port, InetSocketAddress local,
+            int connectTimeout) throws IOException {
+        try {
+            if (local != null) {
+                socket.bind(local);
+            }
+            socket.connect(new InetSocketAddress(address, port), connectTimeout);
+            return socket;
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            throw new ConnectTimeoutException("Connect to " + address + ":" + port + " timed out");
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Socket race(Socket first, InetAddress[] addresses, int port, InetSocketAddress local,
+            int connectTimeout) throws IOException {
+        long deadline = connectTimeout > 0 ? System.currentTimeMillis() + connectTimeout : Long.MAX_VALUE;
+        BlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+        List<Attempt> attempts = new ArrayList<Attempt>(addresses.length);
+        IOException failure = null;
+        int running = 0;
+        try {
+            while (true) {
+                if (attempts.size() < addresses.length) {
+                    Socket socket = attempts.isEmpty() ? first : createSocket();
+                    Attempt attempt = new Attempt(socket, addresses[attempts.size()], port, local, connectTimeout, finished);
+                    attempts.add(attempt);
+                    try {
+                        CONNECT_EXECUTOR.execute(attempt);
+                    } catch (RejectedExecutionException e) {
+                        // 没有线程可用就在当前线程连
+                        attempt.run();
+                    }
+                    running++;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new ConnectTimeoutException("Connect to " + addresses[0] + ":" + port + " timed out");
+                }
+                // 还有地址没试就只等一个间隔, 否则一直等到超时
+                long wait = attempts.size() < addresses.length
+                        ? Math.min(attemptDelayMillis, deadline - now) : deadline - now;
+                Attempt done = finished.poll(wait, TimeUnit.MILLISECONDS);
+                while (done != null) {
+                    running--;
+                    if (done.failure == null) {
+                        done.won = true;
+                        return done.socket;
+                    }
+                    failure = done.failure;
+                    // 一个失败了马上开始下一个, 不用等间隔
+                    done = attempts.size() < addresses.length ? null : finished.poll();
+                }
+                if (running == 0 && attempts.size() == addresses.length) {
+                    throw failure != null ? failure : new IOException("Connect to " + addresses[0] + " failed");
+                }
+                if (first.isClosed() && !attempts.get(0).isDone()) {
+                    // 连接过程中被abort了
+                    throw new InterruptedIOException("Connection aborted");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Connect interrupted");
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private static final class Attempt implements Runnable {
+
+        final Socket socket;
+        private final InetAddress address;
+        private final int port;
+        private final InetSocketAddress local;
+        private final int connectTimeout;
+        private final BlockingQueue<Attempt> finished;
+        // 下面的状态由this保护
+        private boolean done;
+        private boolean cancelled;
+        boolean won;
+        IOException failure;
+
+        Attempt(Socket socket, InetAddress address, int port, InetSocketAddress local, int connectTimeout,
+                BlockingQueue<Attempt> finished) {
+            this.socket = socket;
+            this.address = address;
+            this.port = port;
+            this.local = local;
+            this.connectTimeout = connectTimeout;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            IOException error = null;
+            try {
+                connect(socket, address, port, local, connectTimeout);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                done = true;
+                failure = error;
+                if (cancelled) {
+                    closeQuietly();
+                    return;
+                }
+            }
+            finished.add(this);
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Closes the socket unless this attempt won; one still connecting is closed when it finishes.
+         */
+        synchronized void cancel() {
+            if (won) {
+                return;
+            }
+            cancelled = true;
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.king.http;
+
+import java.net.URI;
+
+/**
+ * Hedging for idempotent GETs to replicated backends: if no response has arrived after the
+ * host's recent <code>percentile</code> latency, a second identical request is sent, optionally
+ * to an alternate base URL, and whichever answers first wins. The other one is aborted.
+ *
+ * The delay is clamped to [<code>minDelayMillis</code>, <code>maxDelayMillis</code>], and
+ * <code>maxDelayMillis</code> is used until enough responses have been seen. Hedges are paid
+ * from a budget: every hedged call earns <code>budgetRatio</code> of a hedge, so over time at
+ * most that share of calls sends a second request.
+ *
+ * HedgePolicy hedge = HedgePolicy.newBuilder()
+ *         .percentile(0.95f)
+ *         .alternateBaseUrl("https://replica.example.com")
+ *         .build();
+ * client.getAsync(url, null, ResponseConverters.json(), RequestOptions.newBuilder().hedge(hedge).build());
+ *
+ * A policy keeps its latency samples and budget; share one instance between the calls it covers.
+ */
+public final class HedgePolicy {
+
+    public static final float DEFAULT_PERCENTILE = 0.95f;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 50;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+    public static final float DEFAULT_BUDGET_RATIO = 0.1f;
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_BURST = 10;
+
+    private final float percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final String alternateBaseUrl;
+    private final LatencyTracker latencies = new LatencyTracker();
+    // 和重试一样的令牌桶, 只是存入的是每次调用而不是每次成功
+    private final RetryBudget budget;
+
+    private HedgePolicy(Builder builder) {
+        percentile = builder.percentile;
+        minDelayMillis = builder.minDelayMillis;
+        maxDelayMillis = builder.maxDelayMillis;
+        alternateBaseUrl = builder.alternateBaseUrl;
+        budget = new RetryBudget(builder.budgetRatio, MAX_BURST, MAX_BURST);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return how long to wait for the first request before hedging
+     */
+    long delayMillis(String host) {
+        long delay = latencies.percentile(host, percentile, MIN_SAMPLES);
+        if (delay < 0) {
+            return maxDelayMillis;
+        }
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, delay));
+    }
+
+    void recordCall(String host) {
+        budget.recordSuccess(host);
+    }
+
+    void recordLatency(String host, long millis) {
+        latencies.record(host, millis);
+    }
+
+    boolean tryAcquireHedge(String host) {
+        return budget.tryAcquire(host);
+    }
+
+    /**
+     * @return the url the hedge goes to: the same path and query on the alternate base, if any
+     */
+    String hedgeUrl(String url) {
+        if (alternateBaseUrl == null) {
+            return url;
+        }
+        URI uri = URI.create(url);
+        StringBuilder sb = new StringBuilder(alternateBaseUrl);
+        if (uri.getRawPath() != null) {
+            sb.append(uri.getRawPath());
+        }
+        if (uri.getRawQuery() != null) {
+            sb.append('?').append(uri.getRawQuery());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return hedges sent so far
+     */
+    public int getHedgeCount() {
+        return budget.getRetryCount();
+    }
+
+    /**
+     * @return hedges that were due but not sent because the budget was used up
+     */
+    public int getSuppressedHedgeCount() {
+        return budget.getSuppressedRetryCount();
+    }
+
+    public static final class Builder {
+
+        private float percentile = DEFAULT_PERCENTILE;
+        private long minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+        private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+        private float budgetRatio = DEFAULT_BUDGET_RATIO;
+        private String alternateBaseUrl;
+
+        private Builder() {
+        }
+
+        /**
+         * Share of responses, between 0 and 1, expected before the hedge is sent.
+         */
+        public Builder percentile(float percentile) {
+            this.percentile = percentile;
+            return this;
+        }
+
+        public Builder minDelayMillis(long minDelayMillis) {
+            this.minDelayMillis = minDelayMillis;
+            return this;
+        }
+
+        /**
+         * Also the delay used before the host has enough latency samples.
+         */
+        public Builder maxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Hedges allowed per call over time, e.g. 0.1 for at most 10% extra requests.
+         */
+        public Builder budgetRatio(float budgetRatio) {
+            this.budgetRatio = budgetRatio;
+            return this;
+        }
+
+        /**
+         * Scheme and authority, e.g. <code>https://replica.example.com</code>, the hedge is sent
+         * to instead of the original host.
+         */
+        public Builder alternateBaseUrl(String alternateBaseUrl) {
+            if (alternateBaseUrl != null && alternateBaseUrl.endsWith("/")) {
+                alternateBaseUrl = alternateBaseUrl.substring(0, alternateBaseUrl.length() - 1);
+            }
+            this.alternateBaseUrl = alternateBaseUrl;
+            return this;
+        }
+
+        public HedgePolicy build() {
+            if (percentile <= 0 || percentile > 1) {
+                throw new IllegalArgumentException("Percentile must be in (0, 1]");
+            }
+            if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis) {
+                throw new IllegalArgumentException("Need 0 <= minDelayMillis <= maxDelayMillis");
+            }
+            if (budgetRatio < 0) {
+                throw new IllegalArgumentException("Budget ratio must not be negative");
+            }
+            return new HedgePolicy(this);
+        }
+    }
+}
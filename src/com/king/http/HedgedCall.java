@@ -0,0 +1,176 @@
+package com.king.http;
+
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * One call under a {@link HedgePolicy}: the original request, possibly a hedge after the
+ * policy's delay, and the future the caller sees, completed by whichever succeeds first.
+ * Failures do not trigger a hedge, retrying is the retry handler's job; the call fails once
+ * every request it sent has failed or was cancelled. Cancelling the call aborts every request
+ * it sent.
+ */
+abstract class HedgedCall<T> {
+
+    private final HedgePolicy policy;
+    private final String url;
+    private final String host;
+    private final ResponseFuture<T> result = new ResponseFuture<T>() {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            abortAllExcept(-1);
+            return true;
+        }
+    };
+    private final ReentrantLock lock = new ReentrantLock();
+    // 以下由lock保护
+    private final HttpUriRequest[] requests = new HttpUriRequest[2];
+    private final ResponseFuture<?>[] attempts = new ResponseFuture<?>[2];
+    private final long[] starts = new long[2];
+    private int launched;
+    // 失败和被取消的都算结束
+    private int finished;
+    private Throwable failure;
+    private boolean hedgeDecided;
+    private ScheduledFuture<?> timer;
+
+    HedgedCall(HedgePolicy policy, String url) {
+        this.policy = policy;
+        this.url = url;
+        this.host = String.valueOf(URI.create(url).getHost());
+    }
+
+    /**
+     * Sends the request.
+     *
+     * @return the future of the response, its request set as {@link ResponseFuture#setUpstream upstream}
+     */
+    abstract ResponseFuture<T> launch(HttpUriRequest request);
+
+    ResponseFuture<T> start() {
+        policy.recordCall(host);
+        lock.lock();
+        try {
+            send(url);
+            timer = Timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedge();
+                }
+            }, policy.delayMillis(host));
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    private void hedge() {
+        lock.lock();
+        try {
+            if (hedgeDecided || result.isDone()) {
+                return;
+            }
+            hedgeDecided = true;
+            if (policy.tryAcquireHedge(host)) {
+                send(policy.hedgeUrl(url));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void send(String target) {
+        final int index = launched++;
+        final long start = System.currentTimeMillis();
+        HttpUriRequest request = new HttpGet(target);
+        requests[index] = request;
+        starts[index] = start;
+        ResponseFuture<T> attempt = launch(request);
+        attempts[index] = attempt;
+        attempt.addCallback(new ResponseFuture.Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                if (result.complete(value)) {
+                    long now = System.currentTimeMillis();
+                    policy.recordLatency(host, now - start);
+                    if (index != 0) {
+                        // 原请求输了也要记下它已经用的时间, 否则估计的延迟只剩下不超过对冲延迟的样本
+                        policy.recordLatency(host, now - originalStart());
+                    }
+                    abortAllExcept(index);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                boolean done;
+                Throwable cause;
+                lock.lock();
+                try {
+                    finished++;
+                    if (!(error instanceof CancellationException)) {
+                        failure = error;
+                    }
+                    // 对冲还没发就失败了: 不再对冲, 直接失败
+                    if (!hedgeDecided) {
+                        hedgeDecided = true;
+                        if (timer != null) {
+                            timer.cancel(false);
+                        }
+                    }
+                    done = finished == launched;
+                    cause = failure;
+                } finally {
+                    lock.unlock();
+                }
+                if (done) {
+                    // 全部被取消(例如cancelRequests)时调用方看到的也是取消
+                    if (cause != null) {
+                        result.completeExceptionally(cause);
+                    } else {
+                        result.cancel(false);
+                    }
+                }
+            }
+        });
+    }
+
+    private long originalStart() {
+        lock.lock();
+        try {
+            return starts[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void abortAllExcept(int winner) {
+        lock.lock();
+        try {
+            hedgeDecided = true;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            for (int i = 0; i < launched; i++) {
+                if (i != winner) {
+                    // abort让阻塞中的读写立即返回, 连接不再放回连接池
+                    requests[i].abort();
+                    attempts[i].cancel(true);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,29 +1,33 @@
 package com.king.http;
 
-import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Executor;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.util.Log;
 
 import com.king.http.cache.HttpResponseCache;
 import com.king.http.cache.CachedHttpResponse.ResponseData;
 
 public class HttpResponseHandler {
 	
+    private static final String LOG_TAG = "HttpResponseHandler";
+
     protected static final int SUCCESS_MESSAGE = 0;
     protected static final int FAILURE_MESSAGE = 1;
     protected static final int START_MESSAGE = 2;
     protected static final int FINISH_MESSAGE = 3;
     
     private Handler handler;
+    private Executor callbackExecutor;
     
     public HttpResponseHandler() {
         if(Looper.myLooper() != null) {
@@ -36,6 +40,18 @@ public class HttpResponseHandler {
         }
     }
     
+    /**
+     * Dispatches this handler's callbacks on the given executor instead of the
+     * looper it was created on. See {@link CallbackExecutors}.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     public void onStart() {}
 
     public void onFinish() {}
@@ -98,25 +114,60 @@ public class HttpResponseHandler {
     }
 
     protected void sendMessage(Message msg) {
-        if(handler != null){
+        if(handler != null && callbackExecutor == null){
             handler.sendMessage(msg);
-        } else {
-            handleMessage(msg);
+            return;
+        }
+        // 在当前线程执行的回调抛出异常时只记录, 不能当作解析失败再发一次onFailure
+        try {
+            if(callbackExecutor != null) {
+                callbackExecutor.execute(new MessageDispatch(msg));
+            } else {
+                try {
+                    handleMessage(msg);
+                } finally {
+                    msg.recycle();
+                }
+            }
+        } catch(RuntimeException e) {
+            Log.w(LOG_TAG, "Callback threw", e);
         }
     }
 
     protected Message obtainMessage(int responseMessage, Object response) {
         Message msg = null;
-        if(handler != null){
+        if(handler != null && callbackExecutor == null){
             msg = this.handler.obtainMessage(responseMessage, response);
         }else{
-            msg = new Message();
+            // 从全局Message池中取, 处理完后recycle
+            msg = Message.obtain();
             msg.what = responseMessage;
             msg.obj = response;
         }
         return msg;
     }
+
+    private class MessageDispatch implements Runnable {
+        private final Message msg;
+
+        MessageDispatch(Message msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handleMessage(msg);
+            } finally {
+                msg.recycle();
+            }
+        }
+    }
     
+    // 请求被取消: 之后不会再有任何回调
+    void sendCancelMessage() {
+    }
+
     void sendResponseCache(HttpResponseCache responseCache, String url){
     	ResponseData responseData = responseCache.get(url);
     	int status = responseData.getStatusCode();
@@ -130,25 +181,33 @@ public class HttpResponseHandler {
     }
 
     // 接收接口
-    void sendResponseMessage(HttpResponse response) {
+    // 在解析线程池中调用, body已经由I/O线程读完
+    void sendResponseMessage(HttpResponse response, byte[] responseBody) {
         StatusLine status = response.getStatusLine();
-        String responseBody = null;
-        try {
-            HttpEntity entity = null;
-            HttpEntity temp = response.getEntity();
-            if(temp != null) {
-                entity = new BufferedHttpEntity(temp);
-                responseBody = EntityUtils.toString(entity, "UTF-8");
+        String responseString = null;
+        if(responseBody != null) {
+            try {
+                responseString = new String(responseBody, getContentCharSet(response));
+            } catch(UnsupportedEncodingException e) {
+                sendFailureMessage(e, (String) null);
+                return;
             }
-        } catch(IOException e) {
-            sendFailureMessage(e, (String) null);
         }
 
         if(status.getStatusCode() >= 300) {
-            sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), responseBody);
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), responseString);
         } else {
-            sendSuccessMessage(responseBody);
+            sendSuccessMessage(responseString);
+        }
+    }
+
+    private static String getContentCharSet(HttpResponse response) {
+        String charset = null;
+        HttpEntity entity = response.getEntity();
+        if(entity != null) {
+            charset = EntityUtils.getContentCharSet(entity);
         }
+        return charset != null ? charset : "UTF-8";
     }
 
 }
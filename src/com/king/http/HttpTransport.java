@@ -0,0 +1,32 @@
+package com.king.http;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * What {@link AsyncHttpRequest} sends requests through. The default is
+ * {@link DefaultHttpTransport}, i.e. the blocking <code>DefaultHttpClient</code>; see
+ * {@link KingHttpClient#setTransport(HttpTransport)} for plugging in another engine.
+ *
+ * Implementations must make {@link HttpUriRequest#abort()} unblock the calling thread, and
+ * should set the {@link org.apache.http.protocol.ExecutionContext} attributes
+ * <code>HTTP_REQUEST</code>, <code>HTTP_TARGET_HOST</code> and <code>HTTP_REQ_SENT</code>,
+ * which {@link RetryHandler} relies on.
+ */
+public interface HttpTransport {
+
+    /**
+     * Sends the request and blocks until the response head has arrived. The entity of the
+     * returned response may still be streaming from the network and is read on the calling
+     * thread.
+     */
+    HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+
+    /**
+     * Closes all connections and releases the transport's threads.
+     */
+    void shutdown();
+}
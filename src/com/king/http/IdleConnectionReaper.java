@@ -0,0 +1,54 @@
+package com.king.http;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+
+/**
+ * Periodically closes pooled connections whose keep-alive expired or that sat idle too long.
+ * One daemon thread serves every client; a client's task ends by itself once its connection
+ * manager has been garbage collected.
+ */
+final class IdleConnectionReaper implements Runnable {
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new KingThreadFactory("king-reaper"));
+
+    private final WeakReference<ClientConnectionManager> manager;
+    private final long idleTimeoutMillis;
+    private volatile ScheduledFuture<?> task;
+
+    private IdleConnectionReaper(ClientConnectionManager manager, long idleTimeoutMillis) {
+        this.manager = new WeakReference<ClientConnectionManager>(manager);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    static void start(ClientConnectionManager manager, long intervalMillis, long idleTimeoutMillis) {
+        IdleConnectionReaper reaper = new IdleConnectionReaper(manager, idleTimeoutMillis);
+        reaper.task = SCHEDULER.scheduleWithFixedDelay(reaper, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        ClientConnectionManager cm = manager.get();
+        if (cm == null) {
+            ScheduledFuture<?> current = task;
+            if (current != null) {
+                current.cancel(false);
+            }
+            return;
+        }
+        try {
+            cm.closeExpiredConnections();
+            if (idleTimeoutMillis > 0) {
+                cm.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException e) {
+            // 不能让一次异常把定时任务停掉
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.king.http;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps a connection as long as the server's <code>Keep-Alive: timeout</code> allows, capped
+ * by the pool's own limit, so the pool stops handing out sockets the server already closed.
+ */
+class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    private final long maxKeepAliveMillis;
+
+    /**
+     * @param maxKeepAliveMillis cap, 0 or less for no cap
+     */
+    KeepAliveStrategy(long maxKeepAliveMillis) {
+        this.maxKeepAliveMillis = maxKeepAliveMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                try {
+                    long millis = Long.parseLong(element.getValue().trim()) * 1000;
+                    return maxKeepAliveMillis > 0 ? Math.min(millis, maxKeepAliveMillis) : millis;
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        // -1: 一直保留, 交给空闲回收
+        return maxKeepAliveMillis > 0 ? maxKeepAliveMillis : -1;
+    }
+}
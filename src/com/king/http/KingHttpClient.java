@@ -2,15 +2,17 @@ package com.king.http;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
@@ -27,10 +29,8 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -42,8 +42,13 @@ import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.SyncBasicHttpContext;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 
+import com.google.common.base.Function;
 import com.king.http.cache.HttpResponseCache;
+import com.king.http.transport.Http2Transport;
+import com.king.http.transport.NioHttpTransport;
+import com.king.http.transport.PipeliningTransport;
 
 /**
  * 异步
@@ -55,9 +60,11 @@ import com.king.http.cache.HttpResponseCache;
 public class KingHttpClient {
 
     private static final int DEFAULT_MAX_CONNECTIONS = 10;
+    private static final int VIRTUAL_THREAD_MAX_CONNECTIONS = 1000;
     private static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
     private static final int DEFAULT_MAX_RETRIES = 5;
     private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+    private static final int DECODE_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
     private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     private static final String ENCODING_GZIP = "gzip";
 
@@ -65,27 +72,71 @@ public class KingHttpClient {
     private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
 
     private final DefaultHttpClient httpClient;
+    private final HttpRequestInterceptor requestInterceptor;
+    private final HttpResponseInterceptor responseInterceptor;
+    private volatile HttpTransport transport;
     private final HttpContext httpContext;
-    private ThreadPoolExecutor threadPool;
-    private final Map<Context, List<WeakReference<Future<?>>>> requestMap;
+    private ExecutorService threadPool;
+    private final RequestDispatcher dispatcher;
+    private final ExecutorService decodePool;
+    private final RequestRegistry requestRegistry = new RequestRegistry();
     private final Map<String, String> clientHeaderMap;
     
+    private final ConnectionPrewarmer prewarmer;
+    // 连接池按host的上限, 设置了并发限制器时放开到限制器的上限
+    private final ConnPerRouteBean connPerRoute;
+    private final int maxPerRoute;
+    private final SessionCachingSSLSocketFactory tlsSocketFactory;
+    private volatile DnsResolver dnsResolver = new CachingDnsResolver();
+    // 总是转给当前的dnsResolver: setDnsResolver之后新建的连接也要生效
+    private final DnsResolver connectResolver = new DnsResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return dnsResolver.resolve(host);
+        }
+    };
+    private volatile CircuitBreaker circuitBreaker;
+    private final RetryHandler retryHandler;
+    private volatile RetryBudget retryBudget = new RetryBudget();
     private HttpResponseCache responseCache;
+    private Executor callbackExecutor;
     
     public KingHttpClient(){
+        this(DEFAULT_MAX_CONNECTIONS, maxConnections);
+    }
+
+    /**
+     * @param maxTotalConnections size of the connection pool
+     * @param maxConnectionsPerRoute connections the pool keeps per host
+     */
+    public KingHttpClient(int maxTotalConnections, int maxConnectionsPerRoute){
+        this(ConnectionPoolConfig.newBuilder()
+                .maxTotal(maxTotalConnections)
+                .maxPerRoute(maxConnectionsPerRoute)
+                .build());
+    }
+
+    /**
+     * @param poolConfig limits, keep-alive and idle reaping of the connection pool
+     */
+    public KingHttpClient(ConnectionPoolConfig poolConfig){
         BasicHttpParams httpParams = new BasicHttpParams();
 
         //定义了从ConnectionManager管理的连接池中取出连接的超时时间
         ConnManagerParams.setTimeout(httpParams, socketTimeout);
-        //每个请求连接池最大数
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
+        //每个请求连接池最大数, 包括按host单独设置的
+        connPerRoute = poolConfig.toConnPerRoute();
+        maxPerRoute = poolConfig.getMaxPerRoute();
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, connPerRoute);
         //最大连接池
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
+        ConnManagerParams.setMaxTotalConnections(httpParams, poolConfig.getMaxTotal());
 
         //设置连接超时和 Socket 超时
         HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
         HttpConnectionParams.setConnectionTimeout(httpParams, socketTimeout);
         HttpConnectionParams.setTcpNoDelay(httpParams, true);
+        //复用前检查连接是否已被服务器关闭
+        HttpConnectionParams.setStaleCheckingEnabled(httpParams, poolConfig.isStaleCheckingEnabled());
         //Socket 缓存大小
         HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_SOCKET_BUFFER_SIZE);
 
@@ -93,13 +144,22 @@ public class KingHttpClient {
         HttpProtocolParams.setUserAgent(httpParams, "king/httpClient");
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        schemeRegistry.register(new Scheme("http", new HappyEyeballsSocketFactory(connectResolver), 80));
+        tlsSocketFactory = new SessionCachingSSLSocketFactory(poolConfig.getTlsSessionCacheSize(),
+                poolConfig.getTlsSessionLifetimeMillis());
+        tlsSocketFactory.setDnsResolver(connectResolver);
+        schemeRegistry.register(new Scheme("https", tlsSocketFactory, 443));
         ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
 
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
         httpClient = new DefaultHttpClient(cm, httpParams);
-        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy(poolConfig.getKeepAliveMillis()));
+        prewarmer = new ConnectionPrewarmer(httpClient, poolConfig.getKeepAliveMillis());
+        httpClient.addRequestInterceptor(prewarmer);
+        if (poolConfig.getReaperIntervalMillis() > 0) {
+            IdleConnectionReaper.start(cm, poolConfig.getReaperIntervalMillis(), poolConfig.getIdleTimeoutMillis());
+        }
+        requestInterceptor = new HttpRequestInterceptor() {
             public void process(HttpRequest request, HttpContext context) {
             	
 //        		Header[] allHeader = request.getAllHeaders();
@@ -114,9 +174,10 @@ public class KingHttpClient {
                     request.addHeader(header, clientHeaderMap.get(header));
                 }
             }
-        });
+        };
+        httpClient.addRequestInterceptor(requestInterceptor);
 
-        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+        responseInterceptor = new HttpResponseInterceptor() {
             public void process(HttpResponse response, HttpContext context) {
             	
 //        		Header[] allHeader = response.getAllHeaders();
@@ -138,16 +199,353 @@ public class KingHttpClient {
                     }
                 }
             }
-        });
+        };
+        httpClient.addResponseInterceptor(responseInterceptor);
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES));
+        retryHandler = new RetryHandler(DEFAULT_MAX_RETRIES);
+        retryHandler.setRetryBudget(retryBudget);
+        httpClient.setHttpRequestRetryHandler(retryHandler);
+        transport = new DefaultHttpTransport(httpClient);
 
-        threadPool = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+        threadPool = Executors.newCachedThreadPool();
+        dispatcher = new RequestDispatcher(threadPool);
+        //解析(String/JSON/binary)放到单独的CPU线程池, I/O线程只负责读完body并归还连接
+        decodePool = Executors.newFixedThreadPool(DECODE_POOL_SIZE, new KingThreadFactory("king-decode"));
 
-        requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
         clientHeaderMap = new HashMap<String, String>();
     }
     
+    /**
+     * Opt-in for JVM services reusing this library (Java 21+, not Android): runs each request
+     * on its own virtual thread, with a connection pool sized for thousands of slow concurrent
+     * requests instead of the ten a phone needs.
+     *
+     * @throws UnsupportedOperationException if the running VM has no virtual threads
+     */
+    public static KingHttpClient withVirtualThreads() {
+        return withVirtualThreads(VIRTUAL_THREAD_MAX_CONNECTIONS);
+    }
+
+    public static KingHttpClient withVirtualThreads(int maxConnections) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            throw new UnsupportedOperationException("virtual threads are not available on this VM");
+        }
+        KingHttpClient client = new KingHttpClient(maxConnections, maxConnections);
+        client.setThreadPool(executor);
+        return client;
+    }
+
+    // 反射调用, 源码仍然可以在Android/旧JDK上编译
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends all further requests through the given engine. The previous transport is shut down,
+     * except that the client's own connection pool stays open for the https and fallback
+     * requests the new engines hand to it; only its idle connections are closed.
+     */
+    public void setTransport(HttpTransport transport) {
+        HttpTransport previous = this.transport;
+        this.transport = transport;
+        if (previous == null || previous == transport) {
+            return;
+        }
+        if (previous instanceof DefaultHttpTransport && ((DefaultHttpTransport) previous).uses(httpClient)) {
+            httpClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        } else {
+            previous.shutdown();
+        }
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Switches plain http requests to the selector based {@link NioHttpTransport}, where a few
+     * event loop threads multiplex all keep-alive connections. https stays on DefaultHttpClient.
+     * Requests waiting for their response hold no thread: the event loop reads the response
+     * and hands it to the decode pool. Streamed requests still occupy a thread of the client's pool.
+     *
+     * @param ioThreads number of event loop threads, 1 or 2 is plenty on a phone
+     */
+    public NioHttpTransport enableNioTransport(int ioThreads) throws IOException {
+        NioHttpTransport nio = new NioHttpTransport(ioThreads, httpClient.getParams(),
+                new DefaultHttpTransport(httpClient));
+        nio.setDnsResolver(connectResolver);
+        nio.addRequestInterceptor(requestInterceptor);
+        nio.addResponseInterceptor(responseInterceptor);
+        setTransport(nio);
+        return nio;
+    }
+
+    /**
+     * Switches to the multiplexed {@link Http2Transport}: one connection per host carries all
+     * concurrent requests. https hosts that do not negotiate h2 over ALPN, and plain http unless
+     * <code>cleartextPriorKnowledge</code> is set, keep using DefaultHttpClient.
+     *
+     * @param cleartextPriorKnowledge speak h2c directly on http URLs, for local test servers
+     */
+    public Http2Transport enableHttp2Transport(boolean cleartextPriorKnowledge) {
+        Http2Transport http2 = new Http2Transport(httpClient.getParams(), new DefaultHttpTransport(httpClient));
+        http2.setCleartextPriorKnowledge(cleartextPriorKnowledge);
+        // 和连接池共用TLS会话缓存
+        http2.setDnsResolver(connectResolver);
+        http2.setSslSocketFactory(tlsSocketFactory.getSocketFactory());
+        http2.addRequestInterceptor(requestInterceptor);
+        http2.addResponseInterceptor(responseInterceptor);
+        setTransport(http2);
+        return http2;
+    }
+
+    /**
+     * Pipelines bursts of GET/HEAD requests to the same http host on shared keep-alive
+     * connections, see {@link PipeliningTransport}. Other requests, and any a pipeline fails to
+     * serve, still go through DefaultHttpClient.
+     *
+     * @param maxDepth most requests in flight on one connection
+     */
+    public PipeliningTransport enablePipelining(int maxDepth) {
+        PipeliningTransport pipelining = new PipeliningTransport(httpClient.getParams(),
+                new DefaultHttpTransport(httpClient));
+        pipelining.setMaxDepth(maxDepth);
+        pipelining.addRequestInterceptor(requestInterceptor);
+        pipelining.addResponseInterceptor(responseInterceptor);
+        setTransport(pipelining);
+        return pipelining;
+    }
+
+    /**
+     * Opens up to <code>count</code> keep-alive connections to the host in the background,
+     * TLS handshake included, and parks them in the pool for the first requests to pick up.
+     * Limited by the pool's per-route maximum.
+     *
+     * @param host bare host name (https is assumed) or a URL such as <code>http://host:8080</code>
+     * @return number of connections newly opened
+     */
+    public ResponseFuture<Integer> prewarm(final String host, final int count) {
+        final ResponseFuture<Integer> future = new ResponseFuture<Integer>();
+        future.setUpstream(threadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(prewarmer.prewarm(host, count));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Prewarms the hosts the previous session talked to, and remembers this session's hosts
+     * for the next start. Call once, early, e.g. from <code>Application.onCreate</code>.
+     */
+    public void enableAutoPrewarm(Context context, int connectionsPerHost) {
+        SharedPreferences preferences = context.getApplicationContext()
+                .getSharedPreferences(ConnectionPrewarmer.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (String host : prewarmer.startSession(preferences, threadPool)) {
+            prewarm(host, connectionsPerHost);
+        }
+    }
+
+    /**
+     * @return connections opened by {@link #prewarm}
+     */
+    public int getPrewarmedConnectionCount() {
+        return prewarmer.getPrewarmedCount();
+    }
+
+    /**
+     * @return prewarmed connections that a request actually went out on
+     */
+    public int getReusedPrewarmedConnectionCount() {
+        return prewarmer.getReusedCount();
+    }
+
+    /**
+     * Replaces the resolver new pooled connections look their host up with. The default is a
+     * {@link CachingDnsResolver} over the platform resolver.
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("DNS resolver may not be null");
+        }
+        this.dnsResolver = dnsResolver;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Fails requests to a host fast while it keeps failing, see {@link CircuitBreaker}. Null,
+     * the default, sends every request.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Limits retries to a share of the successful requests, client-wide and per host, see
+     * {@link RetryBudget}. A default budget allowing 20% is installed; null lifts the limit.
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        retryHandler.setRetryBudget(retryBudget);
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Limits the requests in flight per host to what its latency shows it can take; the rest
+     * wait in a queue. Null, the default, sends every request right away.
+     *
+     * While a limiter is set the pool's default per-host limit is raised to the limiter's
+     * maximum, so the limiter alone decides; hosts given their own limit in the
+     * {@link ConnectionPoolConfig} and the pool's total still apply. Set it before the first
+     * requests: the pool fixes a host's limit when it first connects to it.
+     */
+    public void setConcurrencyLimiter(AdaptiveLimiter limiter) {
+        connPerRoute.setDefaultMaxPerRoute(limiter == null ? maxPerRoute : Math.max(maxPerRoute, limiter.getMaxLimit()));
+        dispatcher.setLimiter(limiter);
+    }
+
+    public AdaptiveLimiter getConcurrencyLimiter() {
+        return dispatcher.getLimiter();
+    }
+
+    /**
+     * Caps the requests the client runs at once; the rest wait, earliest deadline first, see
+     * {@link RequestOptions.Priority}. Calls whose timeout can no longer be met, going by their
+     * host's median response time, fail before they are sent. 0, the default, runs every
+     * request right away.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 0) {
+            throw new IllegalArgumentException("Max concurrent requests must not be negative");
+        }
+        dispatcher.setMaxConcurrent(maxConcurrentRequests);
+    }
+
+    public int getMaxConcurrentRequests() {
+        return dispatcher.getMaxConcurrent();
+    }
+
+    /**
+     * Sheds low priority requests while too many requests are waiting for a slot or they wait
+     * too long; see {@link LoadShedder}. Only matters with a limit on concurrent requests, from
+     * {@link #setMaxConcurrentRequests}, a concurrency limiter or the background. Null turns it
+     * off.
+     */
+    public void setLoadShedder(LoadShedder shedder) {
+        dispatcher.setShedder(shedder);
+    }
+
+    public LoadShedder getLoadShedder() {
+        return dispatcher.getShedder();
+    }
+
+    /**
+     * Sets the share of waiting requests a Context, or a tag set with
+     * {@link RequestOptions.Builder#tag}, gets when the client is at one of its concurrency
+     * limits: queued calls of different Contexts or tags take turns, and in each turn a group
+     * starts as many as its weight. Groups have weight 1 unless set; the weight is held without
+     * keeping the Context or tag from being garbage collected.
+     */
+    public void setFairShareWeight(Object contextOrTag, int weight) {
+        if (contextOrTag == null || weight <= 0) {
+            throw new IllegalArgumentException("Need a Context or tag and a positive weight");
+        }
+        dispatcher.setWeight(contextOrTag, weight);
+    }
+
+    /**
+     * Tells the client whether the app is in the foreground, e.g. from the activity lifecycle.
+     * In the background it runs at most {@link #setBackgroundConcurrency background concurrency}
+     * requests, sends {@link RequestOptions.TrafficClass#DEFERRABLE deferrable} calls in batches
+     * and holds {@link RequestOptions.TrafficClass#PREFETCH prefetches}; back in the foreground
+     * the held calls are released and waiting interactive calls go first. Starts in the
+     * foreground.
+     */
+    public void setForeground(boolean foreground) {
+        dispatcher.setForeground(foreground);
+    }
+
+    public boolean isForeground() {
+        return dispatcher.isForeground();
+    }
+
+    /**
+     * @param maxConcurrentRequests requests run at once in the background, 2 by default
+     */
+    public void setBackgroundConcurrency(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("Background concurrency must be positive");
+        }
+        dispatcher.setBackgroundConcurrency(maxConcurrentRequests);
+    }
+
+    /**
+     * How often deferrable calls are let through in the background, 30 seconds by default.
+     */
+    public void setDeferrableBatchInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Batch interval must be positive");
+        }
+        dispatcher.setBatchIntervalMillis(unit.toMillis(interval));
+    }
+
+    /**
+     * Holds requests to rate limited hosts or paths until their limit allows them, and honors
+     * the server's Retry-After on 429 and 503. Null, the default, applies no rate limits.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        dispatcher.setRateLimiter(rateLimiter);
+    }
+
+    public RateLimiter getRateLimiter() {
+        return dispatcher.getRateLimiter();
+    }
+
+    /**
+     * @return the https socket factory, for TLS session resumption rate and handshake times
+     */
+    public SessionCachingSSLSocketFactory getTlsSocketFactory() {
+        return tlsSocketFactory;
+    }
+
+    /**
+     * Replaces the executor requests run on. The previous one is shut down, requests already
+     * submitted to it still complete.
+     */
+    public void setThreadPool(ExecutorService threadPool) {
+        ExecutorService previous = this.threadPool;
+        this.threadPool = threadPool;
+        dispatcher.setExecutor(threadPool);
+        previous.shutdown();
+    }
+
     /**
      * Enables caching of HTTP responses
      * @param initialCapacity
@@ -181,17 +579,29 @@ public class KingHttpClient {
         return responseCache;
     }
 
+    /**
+     * Sets the executor used to dispatch callbacks of every handler that does not have its
+     * own, e.g. {@link CallbackExecutors#mainThreadBatching()}. Null restores the default
+     * of posting to the looper the handler was created on.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Cancels the unfinished requests made with the context. Requests in flight are aborted,
+     * which unblocks their socket reads, and none of them calls its handler afterwards.
+     */
     public void cancelRequests(Context context, boolean mayInterruptIfRunning) {
-        List<WeakReference<Future<?>>> requestList = requestMap.get(context);
-        if(requestList != null) {
-            for(WeakReference<Future<?>> requestRef : requestList) {
-                Future<?> request = requestRef.get();
-                if(request != null) {
-                    request.cancel(mayInterruptIfRunning);
-                }
-            }
-        }
-        requestMap.remove(context);
+        requestRegistry.cancel(context, mayInterruptIfRunning);
+    }
+
+    /**
+     * Cancels the unfinished requests made with {@link RequestOptions.Builder#tag}; their
+     * futures end up cancelled.
+     */
+    public void cancelRequests(Object tag) {
+        requestRegistry.cancel(tag, true);
     }
 
 
@@ -211,7 +621,111 @@ public class KingHttpClient {
     }
     
     public void get(Context context, String url, RequestParams params, HttpResponseHandler responseHandler) {
-        sendRequest(httpClient, httpContext, new HttpGet(getUrlWithQueryString(url, params)), null, responseHandler, context);
+        get(context, url, params, RequestOptions.DEFAULT, responseHandler);
+    }
+
+    /**
+     * @param options per-call settings such as a timeout, priority or supersede key, see
+     *        {@link RequestOptions}; hedging needs {@link #getAsync} and is ignored here
+     */
+    public void get(String url, RequestParams params, RequestOptions options, HttpResponseHandler responseHandler) {
+        get(null, url, params, options, responseHandler);
+    }
+
+    public void get(Context context, String url, RequestParams params, RequestOptions options,
+            HttpResponseHandler responseHandler) {
+        sendRequest(httpContext, new HttpGet(getUrlWithQueryString(url, params)), null, responseHandler, context,
+                options, System.nanoTime());
+    }
+    
+    //
+    // HTTP GET Requests, future based
+    // 在解析线程完成, 不经过UI线程, 可以用thenCompose/allOf组合
+    //
+
+    public ResponseFuture<Response> get(String url) {
+        return getAsync(url, null);
+    }
+
+    /**
+     * Future based GET that completes with the response whatever its status. The future based
+     * variants are not overloads of <code>get</code>: <code>get(url, null)</code> and
+     * <code>get(url, params, null)</code> have to keep meaning the handler variants.
+     */
+    public ResponseFuture<Response> getAsync(String url, RequestParams params) {
+        ResponseFuture<Response> future = new ResponseFuture<Response>();
+        future.setUpstream(sendRequest(httpContext, new HttpGet(getUrlWithQueryString(url, params)), null,
+                FutureResponseHandler.forResponse(future), null));
+        return future;
+    }
+
+    /**
+     * @param converter applied to successful responses on the decode pool, see {@link ResponseConverters}
+     */
+    public <T> ResponseFuture<T> getAsync(String url, RequestParams params, Function<Response, T> converter) {
+        return getAsync(url, params, converter, RequestOptions.DEFAULT);
+    }
+    
+    /**
+     * @param options per-call settings such as hedging or a timeout, see {@link RequestOptions}
+     */
+    public <T> ResponseFuture<T> getAsync(String url, RequestParams params, final Function<Response, T> converter,
+            final RequestOptions options) {
+        // 对冲请求和原请求共用一个截止时间
+        final long startNanos = System.nanoTime();
+        if (options.getHedgePolicy() == null) {
+            ResponseFuture<T> future = new ResponseFuture<T>();
+            future.setUpstream(sendRequest(httpContext, new HttpGet(getUrlWithQueryString(url, params)), null,
+                    new FutureResponseHandler<T>(future, converter), null, options, startNanos));
+            return future;
+        }
+        return new HedgedCall<T>(options.getHedgePolicy(), getUrlWithQueryString(url, params)) {
+            @Override
+            ResponseFuture<T> launch(HttpUriRequest request) {
+                ResponseFuture<T> future = new ResponseFuture<T>();
+                future.setUpstream(sendRequest(httpContext, request, null,
+                        new FutureResponseHandler<T>(future, converter), null, options, startNanos));
+                return future;
+            }
+        }.start();
+    }
+    
+    //
+    // HTTP GET Requests, streamed body with backpressure
+    //
+
+    /**
+     * @return a publisher that sends the request once subscribed and reads the body from the
+     *         socket only as the subscriber requests it
+     */
+    public BodyPublisher stream(final String url, final RequestParams params) {
+        return new BodyPublisher() {
+            private boolean subscribed;
+
+            @Override
+            public void subscribe(BodySubscriber subscriber) {
+                synchronized (this) {
+                    if (subscribed) {
+                        subscriber.onSubscribe(new BodySubscription() {
+                            @Override
+                            public void request(long n) {}
+                            @Override
+                            public void cancel() {}
+                        });
+                        subscriber.onError(new IllegalStateException("BodyPublisher allows only one subscriber"));
+                        return;
+                    }
+                    subscribed = true;
+                }
+                StreamingResponseHandler handler = new StreamingResponseHandler(subscriber);
+                subscriber.onSubscribe(handler);
+                if (handler.isCancelled() || handler.signalPendingError()) {
+                    return;
+                }
+                handler.setRequestFuture(sendRequest(httpContext,
+                        new HttpGet(getUrlWithQueryString(url, params)), null, handler, null));
+            }
+        };
     }
     
     //
@@ -229,7 +743,21 @@ public class KingHttpClient {
     }
 
     public void post(Context context, String url, HttpEntity entity, String contentType, HttpResponseHandler responseHandler) {
-        sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPost(url), entity), contentType, responseHandler, context);
+        post(context, url, entity, contentType, RequestOptions.DEFAULT, responseHandler);
+    }
+
+    /**
+     * @param options per-call settings such as a timeout, priority or supersede key, see
+     *        {@link RequestOptions}; POSTs are not hedged
+     */
+    public void post(String url, RequestParams params, RequestOptions options, HttpResponseHandler responseHandler) {
+        post(null, url, paramsToEntity(params), null, options, responseHandler);
+    }
+
+    public void post(Context context, String url, HttpEntity entity, String contentType, RequestOptions options,
+            HttpResponseHandler responseHandler) {
+        sendRequest(httpContext, addEntityToRequestBase(new HttpPost(url), entity), contentType, responseHandler,
+                context, options, System.nanoTime());
     }
 
     public void post(Context context, String url, Header[] headers, RequestParams params, String contentType,
@@ -237,7 +765,7 @@ public class KingHttpClient {
         HttpEntityEnclosingRequestBase request = new HttpPost(url);
         if(params != null) request.setEntity(paramsToEntity(params));
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, contentType,
+        sendRequest(httpContext, request, contentType,
                 responseHandler, context);
     }
 
@@ -250,28 +778,73 @@ public class KingHttpClient {
     		HttpResponseHandler responseHandler) {
         HttpEntityEnclosingRequestBase request = addEntityToRequestBase(new HttpPost(url), entity);
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, contentType, responseHandler, context);
+        sendRequest(httpContext, request, contentType, responseHandler, context);
     }
     
-    private void sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, HttpResponseHandler responseHandler, Context context) {
-        if(contentType != null) {
-            uriRequest.addHeader("Content-Type", contentType);
-        }
+    //
+    // HTTP POST Requests, future based
+    //
 
-        Future<?> request = threadPool.submit(new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler,responseCache));
+    /**
+     * Future based POST that completes with the response whatever its status, see
+     * {@link #getAsync}.
+     */
+    public ResponseFuture<Response> postAsync(String url, RequestParams params) {
+        ResponseFuture<Response> future = new ResponseFuture<Response>();
+        future.setUpstream(sendRequest(httpContext, addEntityToRequestBase(new HttpPost(url), paramsToEntity(params)),
+                null, FutureResponseHandler.forResponse(future), null));
+        return future;
+    }
 
-        if(context != null) {
-            // Add request to request map
-            List<WeakReference<Future<?>>> requestList = requestMap.get(context);
-            if(requestList == null) {
-                requestList = new LinkedList<WeakReference<Future<?>>>();
-                requestMap.put(context, requestList);
-            }
+    public <T> ResponseFuture<T> postAsync(String url, RequestParams params, Function<Response, T> converter) {
+        return postAsync(url, params, converter, RequestOptions.DEFAULT);
+    }
 
-            requestList.add(new WeakReference<Future<?>>(request));
+    /**
+     * @param options per-call settings such as a timeout, see {@link RequestOptions}; POSTs are not hedged
+     */
+    public <T> ResponseFuture<T> postAsync(String url, RequestParams params, Function<Response, T> converter,
+            RequestOptions options) {
+        ResponseFuture<T> future = new ResponseFuture<T>();
+        future.setUpstream(sendRequest(httpContext, addEntityToRequestBase(new HttpPost(url), paramsToEntity(params)),
+                null, new FutureResponseHandler<T>(future, converter), null, options, System.nanoTime()));
+        return future;
+    }
 
-            // TODO: Remove dead weakrefs from requestLists?
+    private Future<?> sendRequest(HttpContext httpContext, HttpUriRequest uriRequest, String contentType, HttpResponseHandler responseHandler, Context context) {
+        return sendRequest(httpContext, uriRequest, contentType, responseHandler, context, RequestOptions.DEFAULT, System.nanoTime());
+    }
+
+    /**
+     * @param startNanos when the call started, its timeout counts from there
+     */
+    private Future<?> sendRequest(HttpContext httpContext, HttpUriRequest uriRequest, String contentType,
+            HttpResponseHandler responseHandler, Context context, RequestOptions options, long startNanos) {
+        if(contentType != null) {
+            uriRequest.addHeader("Content-Type", contentType);
+        }
+        if(callbackExecutor != null && responseHandler != null && responseHandler.getCallbackExecutor() == null) {
+            responseHandler.setCallbackExecutor(callbackExecutor);
+        }
+
+        // 每个请求一个子context: 连接, 是否已发送等属性不会被并发的请求互相覆盖
+        HttpContext requestContext = new BasicHttpContext(httpContext);
+        AsyncHttpRequest asyncRequest = new AsyncHttpRequest(transport, httpClient.getHttpRequestRetryHandler(), requestContext, uriRequest, responseHandler, responseCache, decodePool);
+        asyncRequest.setCircuitBreaker(circuitBreaker);
+        asyncRequest.setRetryBudget(retryBudget);
+        asyncRequest.setRateLimiter(dispatcher.getRateLimiter());
+        asyncRequest.setDeadline(options.deadlineNanos(startNanos), socketTimeout);
+        Object tag = context != null ? context : options.getTag();
+        PendingRequest request = dispatcher.dispatch(asyncRequest, uriRequest.getURI(), options, tag);
+
+        // 完成时自动注销, 只在请求未完成期间引用context
+        if(tag != null) {
+            requestRegistry.register(tag, request);
+        }
+        if(options.getSupersedeKey() != null) {
+            requestRegistry.supersede(options.getSupersedeKey(), request);
         }
+        return request;
     }
     
     private String getUrlWithQueryString(String url, RequestParams params) {
@@ -0,0 +1,25 @@
+package com.king.http;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the threads of the client's internal pools so they can be told apart in a trace,
+ * and marks them daemon so an idle client never keeps the process alive.
+ */
+class KingThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String namePrefix;
+
+    KingThreadFactory(String name) {
+        this.namePrefix = name + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,79 @@
+package com.king.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recent response times per host, for percentile estimates.
+ */
+final class LatencyTracker {
+
+    private static final int SAMPLES = 128;
+    private static final int MAX_HOSTS = 256;
+
+    private final ConcurrentHashMap<String, Samples> hosts = new ConcurrentHashMap<String, Samples>();
+
+    void record(String host, long millis) {
+        Samples samples = hosts.get(host);
+        if (samples == null) {
+            if (hosts.size() >= MAX_HOSTS) {
+                hosts.clear();
+            }
+            Samples created = new Samples();
+            samples = hosts.putIfAbsent(host, created);
+            if (samples == null) {
+                samples = created;
+            }
+        }
+        samples.add(millis);
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return the latency below which that share of the recent responses came in, or -1 with
+     *         fewer than <code>minSamples</code> samples
+     */
+    long percentile(String host, float percentile, int minSamples) {
+        Samples samples = hosts.get(host);
+        return samples == null ? -1 : samples.percentile(percentile, minSamples);
+    }
+
+    private static final class Samples {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] values = new long[SAMPLES];
+        private int next;
+        private int count;
+
+        void add(long millis) {
+            lock.lock();
+            try {
+                values[next] = millis;
+                next = (next + 1) % SAMPLES;
+                if (count < SAMPLES) {
+                    count++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long percentile(float percentile, int minSamples) {
+            long[] sorted;
+            lock.lock();
+            try {
+                if (count < minSamples || count == 0) {
+                    return -1;
+                }
+                sorted = new long[count];
+                System.arraycopy(values, 0, sorted, 0, count);
+            } finally {
+                lock.unlock();
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.king.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for the requests waiting in the client for a free slot. Only
+ * {@link RequestOptions.Priority#LOW low priority} requests are shed; normal and high priority
+ * ones always wait their turn.
+ *
+ * A low priority request is shed on arrival when <code>maxQueued</code> requests are already
+ * waiting, or while the queue is overloaded. The queue counts as overloaded CoDel style: when
+ * requests have kept waiting longer than <code>target</code> for a whole
+ * <code>interval</code>, the queue is not just absorbing a burst but standing, and from then on
+ * low priority requests leaving it are shed too, at a rate that grows until the waits drop
+ * below the target again. Work queued during a slow network period thus does not run minutes
+ * later, when nobody needs it any more.
+ *
+ * A shed request whose response is in the client's response cache gets the cached response;
+ * any other fails with {@link RequestShedException}.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.setLoadShedder(new LoadShedder());
+ */
+public class LoadShedder {
+
+    public static final int DEFAULT_MAX_QUEUED = 64;
+    public static final long DEFAULT_TARGET_MILLIS = 200;
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+
+    private final int maxQueued;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger servedFromCache = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    // 以下由lock保护
+    // 等待时间开始一直高于目标后, 满一个interval的时刻; 0表示低于目标
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int dropCount;
+
+    public LoadShedder() {
+        this(DEFAULT_MAX_QUEUED, DEFAULT_TARGET_MILLIS, DEFAULT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxQueued waiting requests beyond which low priority requests are shed on arrival
+     * @param target the queue delay requests may see without the queue counting as overloaded
+     * @param interval how long the delay has to stay above the target before shedding starts,
+     *        about the time a typical request takes
+     */
+    public LoadShedder(int maxQueued, long target, long interval, TimeUnit unit) {
+        if (maxQueued < 0 || target <= 0 || interval < target) {
+            throw new IllegalArgumentException("Need maxQueued >= 0 and 0 < target <= interval");
+        }
+        this.maxQueued = maxQueued;
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+    }
+
+    int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @return low priority requests shed so far, whether they failed or got a cached response
+     */
+    public int getShedCount() {
+        return rejected.get() + servedFromCache.get();
+    }
+
+    /**
+     * @return shed requests that failed with {@link RequestShedException}
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return shed requests answered from the response cache instead
+     */
+    public int getServedFromCacheCount() {
+        return servedFromCache.get();
+    }
+
+    /**
+     * @return true while the queue delay has stayed above the target for longer than the
+     *         interval
+     */
+    public boolean isOverloaded() {
+        lock.lock();
+        try {
+            return dropping;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param queued requests waiting already
+     * @return why a request of the priority arriving now is shed, null to let it queue
+     */
+    String admit(RequestOptions.Priority priority, int queued) {
+        lock.lock();
+        try {
+            if (queued == 0) {
+                onEmpty();
+            }
+            if (priority != RequestOptions.Priority.LOW) {
+                return null;
+            }
+            if (queued >= maxQueued) {
+                return queued + " requests queued";
+            }
+            return dropping ? "queue delay above " + TimeUnit.NANOSECONDS.toMillis(targetNanos) + " ms" : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called for each request leaving the queue to be sent.
+     *
+     * @param sojournNanos time the request waited
+     * @return true if it should be shed instead
+     */
+    boolean onDequeue(RequestOptions.Priority priority, long sojournNanos, long now) {
+        lock.lock();
+        try {
+            boolean above;
+            if (sojournNanos < targetNanos) {
+                firstAboveTime = 0;
+                above = false;
+            } else if (firstAboveTime == 0) {
+                firstAboveTime = now + intervalNanos;
+                above = false;
+            } else {
+                above = now - firstAboveTime >= 0;
+            }
+            if (dropping && !above) {
+                dropping = false;
+                return false;
+            }
+            if (!dropping) {
+                if (!above) {
+                    return false;
+                }
+                dropping = true;
+                // 刚退出过载状态不久又进入: 接着之前的速率, 不从头开始
+                dropCount = now - dropNext < intervalNanos && dropCount > 2 ? dropCount - 2 : 0;
+                dropNext = now;
+            }
+            // 普通和高优先级的请求不丢, 轮到的那次丢弃留给下一个低优先级请求
+            if (priority != RequestOptions.Priority.LOW || now - dropNext < 0) {
+                return false;
+            }
+            dropCount++;
+            dropNext = controlLaw(dropNext);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The queue has drained: whatever backlog there was is gone.
+     */
+    void onEmpty() {
+        lock.lock();
+        try {
+            firstAboveTime = 0;
+            dropping = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordShed(boolean fromCache) {
+        if (fromCache) {
+            servedFromCache.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Shedding gets more frequent the longer the overload lasts: the next one is due
+     * interval / sqrt(shed so far) later.
+     */
+    private long controlLaw(long from) {
+        return from + (long) (intervalNanos / Math.sqrt(Math.max(1, dropCount)));
+    }
+}
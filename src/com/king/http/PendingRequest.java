@@ -0,0 +1,178 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request handed to the {@link RequestDispatcher}, and the future its caller cancels it
+ * through. Runs on the client's executor once the dispatcher admits it; over an
+ * {@link AsyncHttpTransport} that thread is given back as soon as the request is sent.
+ */
+final class PendingRequest extends FutureTask<Object> {
+
+    final AsyncHttpRequest request;
+    final String host;
+    final String path;
+    final RequestOptions.Priority priority;
+    final RequestOptions.TrafficClass trafficClass;
+    // 公平排队的分组: 发起请求的Context或者tag
+    final Object group;
+    private final RequestDispatcher dispatcher;
+    // 运行和截止时间到了之间只有一个能赢
+    private final AtomicBoolean started = new AtomicBoolean();
+    volatile ScheduledFuture<?> deadlineTimer;
+    private volatile RequestRegistry registry;
+    private volatile Object tag;
+    private volatile Object supersedeKey;
+    // 以下由dispatcher的锁保护
+    int inFlightAtStart;
+    // 排队时的截止时间, 没有截止时间的请求按优先级给一个虚拟的
+    long queueDeadline;
+    long queuedAt;
+    long sequence;
+
+    PendingRequest(RequestDispatcher dispatcher, AsyncHttpRequest request, String host, String path,
+            RequestOptions options, Object group) {
+        super(request, null);
+        this.dispatcher = dispatcher;
+        this.request = request;
+        this.host = host;
+        this.path = path;
+        this.priority = options.getPriority();
+        this.trafficClass = options.getTrafficClass();
+        this.group = group;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        boolean ran = started.compareAndSet(false, true);
+        if (ran && !isDone() && request.canRunAsync()) {
+            runAsync(start);
+            return;
+        }
+        try {
+            if (ran) {
+                super.run();
+            }
+        } finally {
+            finished(ran, start);
+        }
+    }
+
+    /**
+     * Sends the request without holding this thread: the request counts as in flight, and the
+     * future completes, only once its last callback has been sent.
+     */
+    private void runAsync(final long start) {
+        final AtomicBoolean completed = new AtomicBoolean();
+        Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                if (completed.compareAndSet(false, true)) {
+                    set(null);
+                    finished(true, start);
+                }
+            }
+        };
+        try {
+            request.runAsync(dispatcher.getExecutor(), onDone);
+        } catch (RuntimeException e) {
+            setException(e);
+            onDone.run();
+        }
+    }
+
+    private void finished(boolean ran, long start) {
+        ScheduledFuture<?> timer = deadlineTimer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        // 取消了没有执行也要归还名额, 但不算作一次延迟样本
+        dispatcher.finished(this, !ran || isCancelled() ? -1 : System.nanoTime() - start);
+    }
+
+    /**
+     * Besides keeping a waiting request from running, aborts a running one: the blocked
+     * socket read returns at once and the connection is closed instead of drained, and the
+     * request delivers no further callbacks.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        request.cancel();
+        return true;
+    }
+
+    @Override
+    protected void done() {
+        RequestRegistry registry = this.registry;
+        if (registry != null) {
+            Object tag = this.tag;
+            if (tag != null) {
+                registry.unregister(tag, this);
+            }
+            Object supersedeKey = this.supersedeKey;
+            if (supersedeKey != null) {
+                registry.release(supersedeKey, this);
+            }
+        }
+    }
+
+    void setTag(RequestRegistry registry, Object tag) {
+        this.tag = tag;
+        this.registry = registry;
+    }
+
+    void setSupersedeKey(RequestRegistry registry, Object supersedeKey) {
+        this.supersedeKey = supersedeKey;
+        this.registry = registry;
+    }
+
+    /**
+     * The request's deadline has passed: fails it if it is still waiting, aborts it if it runs.
+     */
+    void expire() {
+        if (!reject(new DeadlineExceededException("Deadline exceeded for " + host + " before the request was sent"))) {
+            request.expire();
+        }
+    }
+
+    /**
+     * Drops the request without sending it: answers it from the response cache if possible,
+     * fails it otherwise.
+     */
+    void shed(LoadShedder shedder, RequestShedException e) {
+        if (!started.compareAndSet(false, true) || isDone()) {
+            return;
+        }
+        if (request.serveFromCache()) {
+            shedder.recordShed(true);
+            set(null);
+        } else {
+            shedder.recordShed(false);
+            request.reject(e);
+            setException(e);
+        }
+    }
+
+    /**
+     * Fails the request without running it.
+     *
+     * @return false if it has already started
+     */
+    boolean reject(IOException e) {
+        if (!started.compareAndSet(false, true)) {
+            return false;
+        }
+        if (!isDone()) {
+            request.reject(e);
+            setException(e);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,298 @@
+package com.king.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Client-side rate limits for hosts, or paths on a host, that enforce a QPS limit. Each limit
+ * is a token bucket refilled at <code>permitsPerSecond</code> that holds up to
+ * <code>burst</code> permits; a request over the limit is not sent later by a blocked worker
+ * thread but held on a timer until its permit is due, so requests keep their order and are
+ * spaced evenly instead of arriving as a burst of 429s.
+ *
+ * A request has to get a permit from its host's limit and from the limit of the longest path
+ * prefix it matches, if any. A 429 or 503 with a <code>Retry-After</code> header pauses the
+ * host until then, whether it has a limit or not.
+ *
+ * RateLimiter limits = RateLimiter.newBuilder()
+ *         .limit("api.partner.com", 10, 20)
+ *         .limit("api.partner.com", "/search", 2, 2)
+ *         .build();
+ * client.setRateLimiter(limits);
+ */
+public final class RateLimiter {
+
+    // 服务器要求的等待时间过长时按这个上限处理
+    private static final long MAX_PAUSE_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_HOSTS = 256;
+
+    private final Map<String, Bucket> hostBuckets;
+    // 按前缀长度从长到短
+    private final Map<String, List<Bucket>> pathBuckets;
+    private final ConcurrentHashMap<String, Pause> pauses = new ConcurrentHashMap<String, Pause>();
+    private final AtomicInteger delayed = new AtomicInteger();
+
+    private RateLimiter(Builder builder) {
+        hostBuckets = new HashMap<String, Bucket>(builder.hostBuckets);
+        pathBuckets = new HashMap<String, List<Bucket>>();
+        for (Map.Entry<String, List<Bucket>> entry : builder.pathBuckets.entrySet()) {
+            List<Bucket> buckets = new ArrayList<Bucket>(entry.getValue());
+            Collections.sort(buckets, new Comparator<Bucket>() {
+                @Override
+                public int compare(Bucket a, Bucket b) {
+                    return b.prefix.length() - a.prefix.length();
+                }
+            });
+            pathBuckets.put(entry.getKey(), buckets);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Takes the permits a request to the host and path needs.
+     *
+     * @return milliseconds until the request may be sent, 0 for right away
+     */
+    long reserve(String host, String path) {
+        host = host.toLowerCase(Locale.US);
+        long now = System.nanoTime();
+        long wait = 0;
+        Bucket hostBucket = hostBuckets.get(host);
+        if (hostBucket != null) {
+            wait = hostBucket.reserve(now);
+        }
+        Bucket pathBucket = pathBucket(host, path);
+        if (pathBucket != null) {
+            wait = Math.max(wait, pathBucket.reserve(now));
+        }
+        Pause pause = pauses.get(host);
+        if (pause != null) {
+            if (pause.until - now > 0) {
+                wait = Math.max(wait, pause.until - now);
+            } else {
+                pauses.remove(host, pause);
+            }
+        }
+        if (wait <= 0) {
+            return 0;
+        }
+        delayed.incrementAndGet();
+        // 向上取整, 计时器不会提前触发
+        return TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    /**
+     * For a request that became due just now, while the host is paused after a
+     * <code>Retry-After</code>.
+     *
+     * @return milliseconds to hold it for: the rest of the pause plus how far into the pause it
+     *         became due, so held requests go out after the pause spaced as they were due, 0 if
+     *         the host is not paused
+     */
+    long pausedMillis(String host) {
+        Pause pause = pauses.get(host.toLowerCase(Locale.US));
+        long now = System.nanoTime();
+        if (pause == null || pause.until - now <= 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(pause.until - now + Math.max(0, now - pause.since));
+    }
+
+    /**
+     * Holds requests to the host for the given time, as asked by the server.
+     */
+    void pause(String host, long millis) {
+        host = host.toLowerCase(Locale.US);
+        long now = System.nanoTime();
+        long until = now + TimeUnit.MILLISECONDS.toNanos(Math.min(millis, MAX_PAUSE_MILLIS));
+        if (pauses.size() >= MAX_HOSTS) {
+            pauses.clear();
+        }
+        while (true) {
+            Pause current = pauses.get(host);
+            if (current == null) {
+                if (pauses.putIfAbsent(host, new Pause(now, until)) == null) {
+                    break;
+                }
+            } else if (current.until - until >= 0) {
+                break;
+            } else {
+                // 暂停中被延长时保留开始时间
+                long since = current.until - now > 0 ? current.since : now;
+                if (pauses.replace(host, current, new Pause(since, until))) {
+                    break;
+                }
+            }
+        }
+        // 暂停结束后按速率逐个发出, 而不是一起涌向服务器
+        Bucket hostBucket = hostBuckets.get(host);
+        if (hostBucket != null) {
+            hostBucket.pushBack(until);
+        }
+        List<Bucket> buckets = pathBuckets.get(host);
+        if (buckets != null) {
+            for (Bucket bucket : buckets) {
+                bucket.pushBack(until);
+            }
+        }
+    }
+
+    /**
+     * @return requests that were held back by a limit or a pause so far
+     */
+    public int getDelayedCount() {
+        return delayed.get();
+    }
+
+    private Bucket pathBucket(String host, String path) {
+        List<Bucket> buckets = pathBuckets.get(host);
+        if (buckets == null) {
+            return null;
+        }
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        for (Bucket bucket : buckets) {
+            if (path.startsWith(bucket.prefix)) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the wait a <code>Retry-After</code> value, seconds or an HTTP date, asks for, -1
+     *         if it cannot be parsed
+     */
+    static long parseRetryAfter(String value) {
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // 不是秒数, 按HTTP日期解析
+        }
+        try {
+            return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+
+    private static final class Pause {
+
+        final long since;
+        final long until;
+
+        Pause(long since, long until) {
+            this.since = since;
+            this.until = until;
+        }
+    }
+
+    /**
+     * Token bucket kept as the time its next permit is due (GCRA), so taking a permit is one
+     * compare-and-set and needs no refill thread.
+     */
+    private static final class Bucket {
+
+        final String prefix;
+        private final long interval;
+        private final long burstTolerance;
+        private final AtomicLong nextDue = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(String prefix, double permitsPerSecond, int burst) {
+            this.prefix = prefix;
+            this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.burstTolerance = interval * (burst - 1);
+        }
+
+        /**
+         * @return nanoseconds until the permit taken is due
+         */
+        long reserve(long now) {
+            while (true) {
+                long due = nextDue.get();
+                long base = due == Long.MIN_VALUE || due - now < 0 ? now : due;
+                if (nextDue.compareAndSet(due, base + interval)) {
+                    return base - burstTolerance - now;
+                }
+            }
+        }
+
+        void pushBack(long until) {
+            long due = until + burstTolerance;
+            while (true) {
+                long current = nextDue.get();
+                if (current != Long.MIN_VALUE && current - due >= 0) {
+                    return;
+                }
+                if (nextDue.compareAndSet(current, due)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<String, Bucket> hostBuckets = new HashMap<String, Bucket>();
+        private final Map<String, List<Bucket>> pathBuckets = new HashMap<String, List<Bucket>>();
+
+        private Builder() {
+        }
+
+        /**
+         * Limits all requests to the host.
+         *
+         * @param burst requests that may go out at once after a quiet period, at least 1
+         */
+        public Builder limit(String host, double permitsPerSecond, int burst) {
+            hostBuckets.put(host.toLowerCase(Locale.US), newBucket("", permitsPerSecond, burst));
+            return this;
+        }
+
+        /**
+         * Limits requests to the host whose path starts with <code>pathPrefix</code>. A request
+         * also needs a permit from the host's own limit, if it has one.
+         */
+        public Builder limit(String host, String pathPrefix, double permitsPerSecond, int burst) {
+            if (pathPrefix == null || !pathPrefix.startsWith("/")) {
+                throw new IllegalArgumentException("Path prefix must start with /");
+            }
+            host = host.toLowerCase(Locale.US);
+            List<Bucket> buckets = pathBuckets.get(host);
+            if (buckets == null) {
+                buckets = new ArrayList<Bucket>();
+                pathBuckets.put(host, buckets);
+            }
+            buckets.add(newBucket(pathPrefix, permitsPerSecond, burst));
+            return this;
+        }
+
+        public RateLimiter build() {
+            return new RateLimiter(this);
+        }
+
+        private static Bucket newBucket(String prefix, double permitsPerSecond, int burst) {
+            if (permitsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Need permitsPerSecond > 0 and burst >= 1");
+            }
+            return new Bucket(prefix, permitsPerSecond, burst);
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sits between {@link KingHttpClient} and its executor. Without limits every request goes
+ * straight to the executor. A {@link RateLimiter} first holds requests over a rate limit on a
+ * timer until their permit is due. After that a request runs if the client is below its
+ * maximum of concurrent requests and, with an {@link AdaptiveLimiter}, its host below its
+ * current limit; otherwise it waits.
+ *
+ * Waiting requests are grouped by the Context or tag of their call, and the groups take turns
+ * by deficit round robin: each turn a group may start as many requests as its weight, so a
+ * screen with hundreds of queued requests does not hold back another screen's single call,
+ * and a group with weight 2 gets twice the share of one with weight 1. Calls without a Context
+ * or tag make up one group.
+ *
+ * Within a group requests are started earliest deadline first. A request without a deadline gets a
+ * virtual one, the time it started waiting plus the slack of its
+ * {@link RequestOptions.Priority priority}, so low priority work that has waited long enough
+ * goes ahead of newer urgent work instead of starving. A request whose deadline is closer than
+ * its host's median response time is failed with {@link DeadlineExceededException} instead
+ * of being started.
+ *
+ * With a {@link LoadShedder}, low priority requests are dropped instead of queued, or when
+ * they leave the queue, while the queue is too long or requests wait in it too long.
+ *
+ * In the background the client runs at most <code>backgroundConcurrency</code> requests,
+ * {@link RequestOptions.TrafficClass#DEFERRABLE deferrable} ones are held and let through
+ * together once per batch interval, and {@link RequestOptions.TrafficClass#PREFETCH prefetches}
+ * are held until the app is in the foreground again. Back in the foreground, held requests are
+ * released and waiting interactive ones move ahead of the rest.
+ */
+final class RequestDispatcher {
+
+    // 样本足够之前不预测响应时间, 不会因此丢弃请求
+    private static final int MIN_LATENCY_SAMPLES = 10;
+    static final int DEFAULT_BACKGROUND_CONCURRENCY = 2;
+    static final long DEFAULT_BATCH_INTERVAL_MILLIS = 30 * 1000;
+    static final int DEFAULT_WEIGHT = 1;
+
+    private static final Comparator<PendingRequest> EARLIEST_DEADLINE_FIRST = new Comparator<PendingRequest>() {
+        @Override
+        public int compare(PendingRequest a, PendingRequest b) {
+            long diff = a.queueDeadline - b.queueDeadline;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private volatile Executor executor;
+    private volatile AdaptiveLimiter limiter;
+    private volatile RateLimiter rateLimiter;
+    private volatile LoadShedder shedder;
+    private volatile int maxConcurrent;
+    private volatile boolean background;
+    private volatile int backgroundConcurrency = DEFAULT_BACKGROUND_CONCURRENCY;
+    private volatile long batchIntervalMillis = DEFAULT_BATCH_INTERVAL_MILLIS;
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final ReentrantLock lock = new ReentrantLock();
+    // 以下由lock保护
+    // 只保存有请求在等待的组, 轮到的组在最前面
+    private final Map<Object, Group> groups = new HashMap<Object, Group>();
+    private final LinkedList<Group> active = new LinkedList<Group>();
+    // 不阻止Context被回收
+    private final Map<Object, Integer> weights = new WeakHashMap<Object, Integer>();
+    private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+    private int inFlight;
+    private int queued;
+    private long sequence;
+    // 后台时暂存的请求
+    private final List<PendingRequest> deferred = new LinkedList<PendingRequest>();
+    private final List<PendingRequest> paused = new LinkedList<PendingRequest>();
+    private ScheduledFuture<?> batchTimer;
+
+    RequestDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    void setLimiter(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+        startWaiting();
+    }
+
+    AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setShedder(LoadShedder shedder) {
+        this.shedder = shedder;
+    }
+
+    LoadShedder getShedder() {
+        return shedder;
+    }
+
+    /**
+     * @param maxConcurrent requests the client runs at once, 0 for no limit
+     */
+    void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+        startWaiting();
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    void setBackgroundConcurrency(int backgroundConcurrency) {
+        this.backgroundConcurrency = backgroundConcurrency;
+        startWaiting();
+    }
+
+    void setBatchIntervalMillis(long batchIntervalMillis) {
+        this.batchIntervalMillis = batchIntervalMillis;
+    }
+
+    void setWeight(Object group, int weight) {
+        lock.lock();
+        try {
+            weights.put(group, weight);
+            Group waitingGroup = groups.get(group);
+            if (waitingGroup != null) {
+                waitingGroup.weight = weight;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isForeground() {
+        return !background;
+    }
+
+    void setForeground(boolean foreground) {
+        List<PendingRequest> released = new LinkedList<PendingRequest>();
+        lock.lock();
+        try {
+            if (background != foreground) {
+                return;
+            }
+            background = !foreground;
+            if (foreground) {
+                released.addAll(deferred);
+                released.addAll(paused);
+                deferred.clear();
+                paused.clear();
+                if (batchTimer != null) {
+                    batchTimer.cancel(false);
+                    batchTimer = null;
+                }
+                promoteInteractive();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 先让排队的交互请求用上名额, 再放出暂存的请求
+        startWaiting();
+        for (PendingRequest pending : released) {
+            if (!pending.isDone()) {
+                limitRate(pending, false);
+            }
+        }
+    }
+
+    /**
+     * Runs the request now, delays it until the rate limit allows it, queues it until the
+     * client and its host have room for it, or fails it with {@link RequestRejectedException}
+     * if the host's queue is full. A request with a deadline fails with
+     * {@link DeadlineExceededException} once it passes, wherever the request is.
+     *
+     * The call's debounce holds the request before any of that, so that cancelling it in the
+     * meantime keeps it off the network.
+     */
+    PendingRequest dispatch(AsyncHttpRequest request, URI uri, RequestOptions options, Object group) {
+        final PendingRequest pending = new PendingRequest(this, request, String.valueOf(uri.getHost()), uri.getPath(),
+                options, group);
+        long deadline = request.getDeadlineNanos();
+        if (deadline != 0) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            pending.deadlineTimer = Timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.expire();
+                }
+            }, remaining + 1);
+        }
+        if (options.getDebounceMillis() > 0) {
+            Timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!pending.isDone()) {
+                        route(pending, false);
+                    }
+                }
+            }, options.getDebounceMillis());
+        } else {
+            route(pending, true);
+        }
+        return pending;
+    }
+
+    private void route(PendingRequest pending, boolean direct) {
+        if (!hold(pending)) {
+            limitRate(pending, direct);
+        }
+    }
+
+    /**
+     * @return true if the request is held for as long as the app is in the background
+     */
+    private boolean hold(PendingRequest pending) {
+        if (!background || pending.trafficClass == RequestOptions.TrafficClass.INTERACTIVE) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (!background) {
+                return false;
+            }
+            if (pending.trafficClass == RequestOptions.TrafficClass.PREFETCH) {
+                paused.add(pending);
+            } else {
+                deferred.add(pending);
+                if (batchTimer == null) {
+                    batchTimer = Timers.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushDeferred();
+                        }
+                    }, batchIntervalMillis);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushDeferred() {
+        List<PendingRequest> batch;
+        lock.lock();
+        try {
+            batch = new LinkedList<PendingRequest>(deferred);
+            deferred.clear();
+            batchTimer = null;
+        } finally {
+            lock.unlock();
+        }
+        for (PendingRequest pending : batch) {
+            if (!pending.isDone()) {
+                limitRate(pending, false);
+            }
+        }
+    }
+
+    private void limitRate(PendingRequest pending, boolean direct) {
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            long delay = rateLimiter.reserve(pending.host, pending.path);
+            if (delay > 0) {
+                delay(pending, delay);
+                return;
+            }
+        }
+        admit(pending, direct);
+    }
+
+    private void delay(final PendingRequest pending, long delayMillis) {
+        Timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.isDone()) {
+                    return;
+                }
+                RateLimiter rateLimiter = RequestDispatcher.this.rateLimiter;
+                // 等待期间服务器返回了Retry-After: 推迟到暂停结束后, 保持原来的间隔; 许可已经拿过了, 不再reserve
+                long paused = rateLimiter != null ? rateLimiter.pausedMillis(pending.host) : 0;
+                if (paused > 0) {
+                    delay(pending, paused);
+                    return;
+                }
+                admit(pending, false);
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * @param direct on the caller's thread, so an executor that rejects the request is
+     *        reported by throwing
+     */
+    private void admit(PendingRequest pending, boolean direct) {
+        String host = pending.host;
+        AdaptiveLimiter limiter = this.limiter;
+        LoadShedder shedder = this.shedder;
+        IOException failure = null;
+        RequestShedException shed = null;
+        lock.lock();
+        try {
+            HostQueue queue = queue(host);
+            if (canStart(host, queue, limiter)) {
+                if (isLate(pending)) {
+                    failure = lateFailure(pending);
+                    forgetIfIdle(host, queue);
+                } else {
+                    start(pending, queue);
+                }
+            } else {
+                if ((limiter != null && queue.waiting >= limiter.getMaxQueued())
+                        || (shedder != null && queued >= shedder.getMaxQueued())) {
+                    purgeCancelled(host);
+                }
+                String reason = shedder != null ? shedder.admit(pending.priority, queued) : null;
+                if (reason != null) {
+                    shed = new RequestShedException("Shed request to " + host + ": " + reason);
+                    forgetIfIdle(host, queue);
+                } else if (limiter != null && queue.waiting >= limiter.getMaxQueued()) {
+                    failure = new RequestRejectedException("Too many requests queued for " + host);
+                } else {
+                    long now = System.nanoTime();
+                    long deadline = pending.request.getDeadlineNanos();
+                    pending.queueDeadline = deadline != 0 ? deadline
+                            : now + TimeUnit.MILLISECONDS.toNanos(pending.priority.getSlackMillis());
+                    pending.queuedAt = now;
+                    pending.sequence = sequence++;
+                    group(pending.group).waiting.add(pending);
+                    queue.waiting++;
+                    queued++;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (shed != null) {
+            pending.shed(shedder, shed);
+            return;
+        }
+        if (failure != null) {
+            pending.reject(failure);
+            return;
+        }
+        try {
+            executor.execute(pending);
+        } catch (RejectedExecutionException e) {
+            release(pending);
+            if (direct) {
+                throw e;
+            }
+            pending.reject(new RequestRejectedException("Executor rejected request to " + host));
+        }
+    }
+
+    /**
+     * Called once per dispatched request after it ran or was cancelled.
+     *
+     * @param elapsedNanos time the request took, negative if it did not really run
+     */
+    void finished(PendingRequest pending, long elapsedNanos) {
+        // 没发出去的(缓存, 熔断, 本地截止时间)既不说明拥塞也不是后端的延迟
+        if (elapsedNanos >= 0 && pending.request.wasSent()) {
+            boolean failed = pending.request.hasFailed();
+            AdaptiveLimiter limiter = this.limiter;
+            if (limiter != null) {
+                limiter.onSample(pending.host, elapsedNanos, pending.inFlightAtStart, failed);
+            }
+            if (!failed) {
+                latencies.record(pending.host, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            }
+        }
+        release(pending);
+    }
+
+    private void release(PendingRequest pending) {
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(pending.host);
+            if (queue == null) {
+                return;
+            }
+            queue.inFlight--;
+            inFlight--;
+            forgetIfIdle(pending.host, queue);
+        } finally {
+            lock.unlock();
+        }
+        startWaiting();
+    }
+
+    /**
+     * Starts the waiting requests there is room for now, taking turns between the groups.
+     */
+    private void startWaiting() {
+        List<PendingRequest> ready = new LinkedList<PendingRequest>();
+        List<PendingRequest> late = new LinkedList<PendingRequest>();
+        List<PendingRequest> shed = new LinkedList<PendingRequest>();
+        AdaptiveLimiter limiter = this.limiter;
+        LoadShedder shedder = this.shedder;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            int limit = concurrencyLimit();
+            // 连续几个组都没有能启动的请求: 一圈都是这样就停下
+            int blocked = 0;
+            while (!active.isEmpty() && blocked < active.size() && (limit == 0 || inFlight < limit)) {
+                Group group = active.getFirst();
+                if (group.deficit <= 0) {
+                    group.deficit += group.weight;
+                }
+                PendingRequest next = pollStartable(group, limiter, late);
+                if (next != null && shedder != null && shedder.onDequeue(next.priority, now - next.queuedAt, now)) {
+                    shed.add(next);
+                    forgetIfIdle(next.host, hosts.get(next.host));
+                    continue;
+                }
+                if (next != null) {
+                    start(next, hosts.get(next.host));
+                    ready.add(next);
+                    group.deficit--;
+                    blocked = 0;
+                }
+                if (group.waiting.isEmpty()) {
+                    active.removeFirst();
+                    groups.remove(group.key);
+                } else if (next == null) {
+                    // 只等着满了的主机, 轮到下一组; 额度不攒到超过一轮
+                    group.deficit = Math.min(group.deficit, group.weight);
+                    active.addLast(active.removeFirst());
+                    blocked++;
+                } else if (group.deficit <= 0) {
+                    active.addLast(active.removeFirst());
+                }
+            }
+            if (shedder != null && queued == 0) {
+                shedder.onEmpty();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PendingRequest next : late) {
+            next.reject(lateFailure(next));
+        }
+        for (PendingRequest next : shed) {
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - next.queuedAt);
+            next.shed(shedder, new RequestShedException("Shed request to " + next.host + " after " + waited
+                    + " ms in an overloaded queue"));
+        }
+        for (PendingRequest next : ready) {
+            try {
+                executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                // 在工作线程上, 没有调用方可以抛给: 当作失败交给handler
+                next.reject(new RequestRejectedException("Executor rejected request to " + next.host));
+                release(next);
+            }
+        }
+    }
+
+    /**
+     * Takes the group's first request in deadline order whose host has room, dropping the
+     * cancelled and late ones before it. Caller holds the lock.
+     *
+     * @return null if none can start now
+     */
+    private PendingRequest pollStartable(Group group, AdaptiveLimiter limiter, List<PendingRequest> late) {
+        Iterator<PendingRequest> it = group.waiting.iterator();
+        while (it.hasNext()) {
+            PendingRequest next = it.next();
+            HostQueue queue = hosts.get(next.host);
+            if (!next.isDone() && limiter != null && queue.inFlight >= limiter.getLimit(next.host)) {
+                // 这个主机满了, 后面别的主机的请求可以先走
+                continue;
+            }
+            it.remove();
+            queue.waiting--;
+            queued--;
+            if (next.isDone()) {
+                forgetIfIdle(next.host, queue);
+            } else if (isLate(next)) {
+                late.add(next);
+                forgetIfIdle(next.host, queue);
+            } else {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private boolean canStart(String host, HostQueue queue, AdaptiveLimiter limiter) {
+        int limit = concurrencyLimit();
+        return (limit == 0 || inFlight < limit)
+                && (limiter == null || queue.inFlight < limiter.getLimit(host));
+    }
+
+    /**
+     * @return requests the client may run at once right now, 0 for no limit
+     */
+    private int concurrencyLimit() {
+        int limit = maxConcurrent;
+        if (background) {
+            limit = limit == 0 ? backgroundConcurrency : Math.min(limit, backgroundConcurrency);
+        }
+        return limit;
+    }
+
+    /**
+     * Moves waiting interactive requests ahead of all others that are not due yet, keeping
+     * their order. Caller holds the lock.
+     */
+    private void promoteInteractive() {
+        long now = System.nanoTime();
+        for (Group group : active) {
+            List<PendingRequest> promoted = new LinkedList<PendingRequest>();
+            Iterator<PendingRequest> it = group.waiting.iterator();
+            while (it.hasNext()) {
+                PendingRequest next = it.next();
+                if (next.trafficClass == RequestOptions.TrafficClass.INTERACTIVE && next.queueDeadline - now > 0) {
+                    it.remove();
+                    promoted.add(next);
+                }
+            }
+            for (PendingRequest next : promoted) {
+                next.queueDeadline = now;
+                group.waiting.add(next);
+            }
+        }
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void start(PendingRequest pending, HostQueue queue) {
+        inFlight++;
+        pending.inFlightAtStart = ++queue.inFlight;
+    }
+
+    /**
+     * @return true if the request has a deadline it can no longer meet, going by its host's
+     *         median response time
+     */
+    private boolean isLate(PendingRequest pending) {
+        long deadline = pending.request.getDeadlineNanos();
+        if (deadline == 0) {
+            return false;
+        }
+        long expected = latencies.percentile(pending.host, 0.5f, MIN_LATENCY_SAMPLES);
+        return expected >= 0 && deadline - System.nanoTime() < TimeUnit.MILLISECONDS.toNanos(expected);
+    }
+
+    private static IOException lateFailure(PendingRequest pending) {
+        return new DeadlineExceededException("Deadline too close to send a request to " + pending.host);
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private Group group(Object key) {
+        Group group = groups.get(key);
+        if (group == null) {
+            Integer weight = key != null ? weights.get(key) : null;
+            group = new Group(key, weight != null ? weight : DEFAULT_WEIGHT);
+            groups.put(key, group);
+            active.addLast(group);
+        }
+        return group;
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private HostQueue queue(String host) {
+        HostQueue queue = hosts.get(host);
+        if (queue == null) {
+            queue = new HostQueue();
+            hosts.put(host, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void forgetIfIdle(String host, HostQueue queue) {
+        if (queue.inFlight == 0 && queue.waiting == 0) {
+            hosts.remove(host);
+        }
+    }
+
+    /**
+     * Caller holds the lock.
+     *
+     * @param host whose queue the caller is about to use, kept even if idle
+     */
+    private void purgeCancelled(String host) {
+        Iterator<Group> groupIt = active.iterator();
+        while (groupIt.hasNext()) {
+            Group group = groupIt.next();
+            Iterator<PendingRequest> it = group.waiting.iterator();
+            while (it.hasNext()) {
+                PendingRequest next = it.next();
+                if (next.isDone()) {
+                    it.remove();
+                    HostQueue queue = hosts.get(next.host);
+                    queue.waiting--;
+                    queued--;
+                    if (!next.host.equals(host)) {
+                        forgetIfIdle(next.host, queue);
+                    }
+                }
+            }
+            if (group.waiting.isEmpty()) {
+                groupIt.remove();
+                groups.remove(group.key);
+            }
+        }
+    }
+
+    /**
+     * The waiting requests of one Context or tag.
+     */
+    private static final class Group {
+        final Object key;
+        final TreeSet<PendingRequest> waiting = new TreeSet<PendingRequest>(EARLIEST_DEADLINE_FIRST);
+        int weight;
+        // 这一轮还能启动的请求数
+        int deficit;
+
+        Group(Object key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    private static final class HostQueue {
+        int inFlight;
+        int waiting;
+    }
+}
@@ -0,0 +1,227 @@
+package com.king.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call settings for the future based API of {@link KingHttpClient}.
+ *
+ * RequestOptions options = RequestOptions.newBuilder()
+ *         .hedge(hedgePolicy)
+ *         .timeout(5, TimeUnit.SECONDS)
+ *         .build();
+ * client.getAsync(url, params, ResponseConverters.json(), options);
+ */
+public final class RequestOptions {
+
+    /**
+     * How urgent a call is when it has to wait for the client's or its host's concurrency
+     * limit. Calls wait earliest deadline first; one without a timeout is treated as due
+     * its priority's slack after it started waiting, so low priority calls that have waited
+     * long enough still go ahead of newer urgent ones.
+     */
+    public enum Priority {
+        HIGH(200), NORMAL(2000), LOW(15000);
+
+        private final long slackMillis;
+
+        private Priority(long slackMillis) {
+            this.slackMillis = slackMillis;
+        }
+
+        public long getSlackMillis() {
+            return slackMillis;
+        }
+    }
+
+    /**
+     * Options of a call that sets none.
+     */
+    public static final RequestOptions DEFAULT = newBuilder().build();
+
+    /**
+     * What a call is for, which decides how it is sent while the app is in the background,
+     * see {@link KingHttpClient#setForeground(boolean)}.
+     */
+    public enum TrafficClass {
+        /**
+         * The user is waiting for it. Sent right away, within the background concurrency limit.
+         */
+        INTERACTIVE,
+        /**
+         * Has to be sent, but not now, e.g. analytics or a sync. In the background these calls
+         * are collected and sent together once per batch interval, so the radio can sleep in
+         * between.
+         */
+        DEFERRABLE,
+        /**
+         * Only useful if the user comes back, e.g. preloading the next page. Not sent at all
+         * while the app is in the background.
+         */
+        PREFETCH
+    }
+
+    private final HedgePolicy hedgePolicy;
+    private final long timeoutMillis;
+    private final Object tag;
+    private final Object supersedeKey;
+    private final long debounceMillis;
+    private final Priority priority;
+    private final TrafficClass trafficClass;
+
+    private RequestOptions(Builder builder) {
+        hedgePolicy = builder.hedgePolicy;
+        timeoutMillis = builder.timeoutMillis;
+        tag = builder.tag;
+        supersedeKey = builder.supersedeKey;
+        debounceMillis = builder.debounceMillis;
+        priority = builder.priority;
+        trafficClass = builder.trafficClass;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * @return the total time budget of the call, 0 for none
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    public Object getSupersedeKey() {
+        return supersedeKey;
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public TrafficClass getTrafficClass() {
+        return trafficClass;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the call started at plus its timeout, 0 for none
+     */
+    long deadlineNanos(long startNanos) {
+        if (timeoutMillis == 0) {
+            return 0;
+        }
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        return deadline == 0 ? 1 : deadline;
+    }
+
+    public static final class Builder {
+
+        private HedgePolicy hedgePolicy;
+        private long timeoutMillis;
+        private Object tag;
+        private Object supersedeKey;
+        private long debounceMillis;
+        private Priority priority = Priority.NORMAL;
+        private TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+
+        private Builder() {
+        }
+
+        /**
+         * Sends a second request if the first is slow, see {@link HedgePolicy}. Only GETs are hedged.
+         */
+        public Builder hedge(HedgePolicy hedgePolicy) {
+            this.hedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        /**
+         * Total time the call may take, from now until the response is read: waiting for a
+         * rate limit, a connection or a pooled connection, every attempt and the pauses between
+         * retries. Each attempt's socket timeouts are cut to what is left, and once it is used
+         * up the call fails with {@link DeadlineExceededException}.
+         */
+        public Builder timeout(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Timeout must be positive");
+            }
+            this.timeoutMillis = Math.max(1, unit.toMillis(duration));
+            return this;
+        }
+
+        /**
+         * Groups the call with others for {@link KingHttpClient#cancelRequests(Object)} and for
+         * fair queuing ({@link KingHttpClient#setFairShareWeight}), e.g. a screen or a user
+         * session. Held only while the call is unfinished.
+         */
+        public Builder tag(Object tag) {
+            this.tag = tag;
+            return this;
+        }
+
+        /**
+         * Latest wins: a later call with an equal key cancels this one, waiting or in flight,
+         * and aborts its connection, so only the newest result is delivered. Meant for e.g.
+         * search as you type, with the search box as the key. Not combinable with {@link #hedge}.
+         */
+        public Builder supersede(Object key) {
+            this.supersedeKey = key;
+            return this;
+        }
+
+        /**
+         * Holds a {@link #supersede superseding} call this long before it is sent, so a burst
+         * of calls with the same key reaches the network only once, as its last call.
+         */
+        public Builder debounce(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("Debounce must not be negative");
+            }
+            this.debounceMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Where the call goes among waiting calls without a timeout, see {@link Priority}.
+         */
+        public Builder priority(Priority priority) {
+            if (priority == null) {
+                throw new IllegalArgumentException("Priority must not be null");
+            }
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * How the call is treated while the app is in the background, see {@link TrafficClass}.
+         */
+        public Builder trafficClass(TrafficClass trafficClass) {
+            if (trafficClass == null) {
+                throw new IllegalArgumentException("Traffic class must not be null");
+            }
+            this.trafficClass = trafficClass;
+            return this;
+        }
+
+        public RequestOptions build() {
+            if (debounceMillis > 0 && supersedeKey == null) {
+                throw new IllegalStateException("Debounce needs a supersede key");
+            }
+            // 对冲请求会用同一个key取消掉原请求
+            if (supersedeKey != null && hedgePolicy != null) {
+                throw new IllegalStateException("A hedged call cannot be superseded");
+            }
+            return new RequestOptions(this);
+        }
+    }
+}
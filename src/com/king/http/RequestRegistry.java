@@ -0,0 +1,80 @@
+package com.king.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The requests in flight or waiting per tag, an Android Context or any object passed as
+ * {@link RequestOptions.Builder#tag}, so they can be cancelled together, and the latest request
+ * per {@link RequestOptions.Builder#supersede supersede key}. A request leaves the registry as
+ * soon as it completes, so a tag or key is only held while it has unfinished requests.
+ */
+final class RequestRegistry {
+
+    private final ConcurrentHashMap<Object, ConcurrentHashMap<PendingRequest, Boolean>> requests =
+            new ConcurrentHashMap<Object, ConcurrentHashMap<PendingRequest, Boolean>>();
+    private final ConcurrentHashMap<Object, PendingRequest> latest = new ConcurrentHashMap<Object, PendingRequest>();
+
+    void register(Object tag, PendingRequest pending) {
+        pending.setTag(this, tag);
+        while (true) {
+            ConcurrentHashMap<PendingRequest, Boolean> set = requests.get(tag);
+            if (set == null) {
+                ConcurrentHashMap<PendingRequest, Boolean> created = new ConcurrentHashMap<PendingRequest, Boolean>();
+                set = requests.putIfAbsent(tag, created);
+                if (set == null) {
+                    set = created;
+                }
+            }
+            set.put(pending, Boolean.TRUE);
+            // 集合可能在put之前被清空移除, 那样就放进新的集合
+            if (requests.get(tag) == set) {
+                break;
+            }
+        }
+        // 注册之前就已经完成: done()里的注销可能没有找到它
+        if (pending.isDone()) {
+            unregister(tag, pending);
+        }
+    }
+
+    void unregister(Object tag, PendingRequest pending) {
+        ConcurrentHashMap<PendingRequest, Boolean> set = requests.get(tag);
+        if (set != null) {
+            set.remove(pending);
+            if (set.isEmpty()) {
+                requests.remove(tag, set);
+            }
+        }
+    }
+
+    /**
+     * Makes the request the latest for the key and cancels the one it replaces, which aborts
+     * its connection if it is in flight.
+     */
+    void supersede(Object key, PendingRequest pending) {
+        pending.setSupersedeKey(this, key);
+        PendingRequest previous = latest.put(key, pending);
+        if (previous != null) {
+            previous.cancel(true);
+        }
+        if (pending.isDone()) {
+            release(key, pending);
+        }
+    }
+
+    void release(Object key, PendingRequest pending) {
+        latest.remove(key, pending);
+    }
+
+    /**
+     * Cancels every unfinished request registered under the tag.
+     */
+    void cancel(Object tag, boolean mayInterruptIfRunning) {
+        ConcurrentHashMap<PendingRequest, Boolean> set = requests.remove(tag);
+        if (set != null) {
+            for (PendingRequest pending : set.keySet()) {
+                pending.cancel(mayInterruptIfRunning);
+            }
+        }
+    }
+}
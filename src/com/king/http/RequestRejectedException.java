@@ -0,0 +1,16 @@
+package com.king.http;
+
+import java.io.IOException;
+
+/**
+ * A request was refused by the client itself, without being sent, because too much work was
+ * already queued.
+ */
+public class RequestRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.king.http;
+
+/**
+ * A low priority request was dropped by the client's {@link LoadShedder} because its queue was
+ * too long or requests had been waiting in it too long, and no cached response was available.
+ */
+public class RequestShedException extends RequestRejectedException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestShedException(String message) {
+        super(message);
+    }
+}
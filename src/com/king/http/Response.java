@@ -0,0 +1,77 @@
+package com.king.http;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.http.Header;
+
+/**
+ * A fully read HTTP response, as delivered by the {@link ResponseFuture} based request API.
+ * Headers are not available for responses served from {@link com.king.http.cache.HttpResponseCache}.
+ */
+public class Response {
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Header[] headers;
+    private final byte[] body;
+    private final String charset;
+
+    public Response(int statusCode, String reasonPhrase, Header[] headers, byte[] body, String charset) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers != null ? headers : NO_HEADERS;
+        this.body = body;
+        this.charset = charset != null ? charset : "UTF-8";
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /**
+     * @return true for 2xx status codes
+     */
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    public Header[] getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the first header with the given name, or null
+     */
+    public String getHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the response body, or null if the response had no entity
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyAsString() {
+        if (body == null) {
+            return null;
+        }
+        try {
+            return new String(body, charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(body);
+        }
+    }
+}
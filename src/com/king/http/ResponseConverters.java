@@ -0,0 +1,61 @@
+package com.king.http;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import com.google.common.base.Function;
+
+/**
+ * Converters for the typed request variants of {@link KingHttpClient}, e.g.
+ * <code>client.getAsync(url, params, ResponseConverters.json())</code>. They run on the decode
+ * pool, and a {@link RuntimeException} thrown by one fails the future.
+ */
+public final class ResponseConverters {
+
+    private static final Function<Response, String> STRING = new Function<Response, String>() {
+        @Override
+        public String apply(Response response) {
+            return response.getBodyAsString();
+        }
+    };
+
+    private static final Function<Response, byte[]> BYTES = new Function<Response, byte[]>() {
+        @Override
+        public byte[] apply(Response response) {
+            return response.getBody();
+        }
+    };
+
+    private static final Function<Response, Object> JSON = new Function<Response, Object>() {
+        @Override
+        public Object apply(Response response) {
+            String body = response.getBodyAsString();
+            if (body == null) {
+                return null;
+            }
+            try {
+                return new JSONTokener(body.trim()).nextValue();
+            } catch (JSONException e) {
+                throw new IllegalStateException("Invalid JSON response", e);
+            }
+        }
+    };
+
+    private ResponseConverters() {
+    }
+
+    public static Function<Response, String> string() {
+        return STRING;
+    }
+
+    public static Function<Response, byte[]> bytes() {
+        return BYTES;
+    }
+
+    /**
+     * @return a converter yielding a JSONObject, JSONArray or JSON primitive
+     */
+    public static Function<Response, Object> json() {
+        return JSON;
+    }
+}
@@ -0,0 +1,371 @@
+package com.king.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+import com.google.common.base.Function;
+
+/**
+ * The pending result of a request made through the future based API of {@link KingHttpClient}.
+ * Completes on the client's decode thread; continuations registered with an {@link Executor}
+ * run there instead. Dependent calls can be chained without going through the UI thread:
+ *
+ * client.getAsync(profileUrl, null, ResponseConverters.json())
+ *     .thenCompose(new Function&lt;Object, ResponseFuture&lt;Response&gt;&gt;() {
+ *         public ResponseFuture&lt;Response&gt; apply(Object profile) {
+ *             return client.get(feedUrlFor(profile));
+ *         }
+ *     })
+ *     .addCallback(callback, CallbackExecutors.mainThread());
+ *
+ * Cancelling a future cancels the request behind it, and the futures it was derived from.
+ * Futures derived from a cancelled one are cancelled as well.
+ */
+public class ResponseFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable error);
+    }
+
+    private static final String LOG_TAG = "ResponseFuture";
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    // 不用synchronized/wait: 在虚拟线程上get()会pin住carrier线程
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition completed = lock.newCondition();
+    private int state = PENDING;
+    private T result;
+    private Throwable error;
+    // 完成后置为null
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private volatile Future<?> upstream;
+
+    public ResponseFuture() {
+    }
+
+    /**
+     * @return false if the future was already completed or cancelled
+     */
+    public boolean complete(T value) {
+        return finish(SUCCEEDED, value, null);
+    }
+
+    public boolean completeExceptionally(Throwable t) {
+        return finish(FAILED, null, t);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(CANCELLED, null, null)) {
+            return false;
+        }
+        Future<?> target = upstream;
+        if (target != null) {
+            target.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    /**
+     * Sets what {@link #cancel} propagates to, i.e. the request or future this one depends on.
+     */
+    void setUpstream(Future<?> upstream) {
+        this.upstream = upstream;
+        if (isCancelled()) {
+            upstream.cancel(true);
+        }
+    }
+
+    private boolean finish(int newState, T value, Throwable t) {
+        List<Runnable> toRun;
+        lock.lock();
+        try {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            result = value;
+            error = t;
+            toRun = listeners;
+            listeners = null;
+            completed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable listener : toRun) {
+            runListener(listener);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return currentState() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return currentState() != PENDING;
+    }
+
+    private int currentState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            while (state == PENDING) {
+                completed.await();
+            }
+            return report();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (state == PENDING) {
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                remaining = completed.awaitNanos(remaining);
+            }
+            return report();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T report() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    private void addListener(Runnable listener) {
+        lock.lock();
+        try {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        runListener(listener);
+    }
+
+    /**
+     * A listener that throws must not keep the ones after it from running, nor fail whoever
+     * completed the future.
+     */
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Listener threw", e);
+        }
+    }
+
+    /**
+     * Runs the callback on the completing thread.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        addCallback(callback, CallbackExecutors.direct());
+    }
+
+    /**
+     * Runs the callback on the given executor. A cancelled future reports a
+     * {@link CancellationException} to {@link Callback#onFailure}.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                final int finalState = currentState();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finalState == SUCCEEDED) {
+                            callback.onSuccess(result);
+                        } else if (finalState == CANCELLED) {
+                            callback.onFailure(new CancellationException());
+                        } else {
+                            callback.onFailure(error);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fails the derived future with the failure, or cancels it if the failure is a
+     * cancellation; what it depends on is already done, so there is nothing to propagate to.
+     */
+    private static void failDerived(ResponseFuture<?> derived, Throwable t) {
+        if (t instanceof CancellationException) {
+            derived.finish(CANCELLED, null, null);
+        } else {
+            derived.completeExceptionally(t);
+        }
+    }
+
+    public <R> ResponseFuture<R> thenApply(Function<? super T, ? extends R> fn) {
+        return thenApply(fn, CallbackExecutors.direct());
+    }
+
+    /**
+     * @return a future completed with <code>fn</code> applied to this future's result, or with
+     *         this future's failure
+     */
+    public <R> ResponseFuture<R> thenApply(final Function<? super T, ? extends R> fn, Executor executor) {
+        final ResponseFuture<R> next = new ResponseFuture<R>();
+        next.setUpstream(this);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                R mapped;
+                try {
+                    mapped = fn.apply(value);
+                } catch (RuntimeException e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                next.complete(mapped);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failDerived(next, t);
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * @return a future completed with the result of the future <code>fn</code> returns
+     */
+    public <R> ResponseFuture<R> thenCompose(final Function<? super T, ResponseFuture<R>> fn) {
+        final ResponseFuture<R> next = new ResponseFuture<R>();
+        next.setUpstream(this);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                ResponseFuture<R> inner;
+                try {
+                    inner = fn.apply(value);
+                } catch (RuntimeException e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                if (inner == null) {
+                    next.completeExceptionally(new NullPointerException("thenCompose function returned null"));
+                    return;
+                }
+                next.setUpstream(inner);
+                inner.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R innerValue) {
+                        next.complete(innerValue);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failDerived(next, t);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failDerived(next, t);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Fan-in: completes with the results of all futures, in order, once every one of them
+     * has succeeded, or fails as soon as one of them fails or is cancelled. Cancelling it
+     * cancels all of them.
+     */
+    public static <T> ResponseFuture<List<T>> allOf(final List<? extends ResponseFuture<? extends T>> futures) {
+        final ResponseFuture<List<T>> all = new ResponseFuture<List<T>>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (!super.cancel(mayInterruptIfRunning)) {
+                    return false;
+                }
+                for (ResponseFuture<? extends T> future : futures) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+                return true;
+            }
+        };
+        final int size = futures.size();
+        final List<T> results = new ArrayList<T>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(null);
+        }
+        if (size == 0) {
+            all.complete(results);
+            return all;
+        }
+        final int[] remaining = new int[] { size };
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    boolean last;
+                    synchronized (results) {
+                        results.set(index, value);
+                        last = --remaining[0] == 0;
+                    }
+                    if (last) {
+                        all.complete(results);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failDerived(all, t);
+                }
+            });
+        }
+        return all;
+    }
+}
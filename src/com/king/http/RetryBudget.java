@@ -0,0 +1,157 @@
+package com.king.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries at a share of the traffic that succeeds, so an outage does not multiply the
+ * load on the backend by the retry count. Token buckets, one for the client and one per host:
+ * every successful request earns <code>retryRatio</code> of a token in both, every retry
+ * costs a whole token from both, and a retry that finds either bucket empty is not made.
+ *
+ * Buckets start full, so a client that just started or a host that is rarely called can still
+ * retry a few times.
+ */
+public class RetryBudget {
+
+    public static final float DEFAULT_RETRY_RATIO = 0.2f;
+    public static final int DEFAULT_MAX_TOKENS_PER_HOST = 10;
+    public static final int DEFAULT_MAX_TOKENS = 50;
+    private static final int MAX_HOSTS = 256;
+    // 用千分之一个令牌做单位, 避免浮点累加误差
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long maxPerHost;
+    private final Bucket clientBucket;
+    private final ConcurrentHashMap<String, Bucket> hostBuckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    public RetryBudget() {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_MAX_TOKENS_PER_HOST, DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * @param retryRatio retries allowed per successful request over time, e.g. 0.2 for 20%
+     * @param maxTokensPerHost burst of retries a host can take after a quiet period
+     * @param maxTokens burst of retries across all hosts
+     */
+    public RetryBudget(float retryRatio, int maxTokensPerHost, int maxTokens) {
+        if (retryRatio < 0 || maxTokensPerHost <= 0 || maxTokens <= 0) {
+            throw new IllegalArgumentException("Retry ratio must not be negative, token limits must be positive");
+        }
+        this.deposit = (long) (retryRatio * TOKEN);
+        this.maxPerHost = maxTokensPerHost * TOKEN;
+        this.clientBucket = new Bucket(maxTokens * TOKEN);
+    }
+
+    /**
+     * A request to the host succeeded.
+     */
+    public void recordSuccess(String host) {
+        if (deposit > 0) {
+            bucket(host).deposit(deposit);
+            clientBucket.deposit(deposit);
+        }
+    }
+
+    /**
+     * Spends a token for a retry to the host.
+     *
+     * @return false if the budget is used up and the request should fail instead
+     */
+    public boolean tryAcquire(String host) {
+        Bucket bucket = bucket(host);
+        if (bucket.withdraw(TOKEN)) {
+            if (clientBucket.withdraw(TOKEN)) {
+                retries.incrementAndGet();
+                return true;
+            }
+            bucket.deposit(TOKEN);
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return retries the budget allowed
+     */
+    public int getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return retries the retry handler wanted to make but the budget refused
+     */
+    public int getSuppressedRetryCount() {
+        return suppressed.get();
+    }
+
+    private Bucket bucket(String host) {
+        Bucket bucket = hostBuckets.get(host);
+        if (bucket == null) {
+            if (hostBuckets.size() >= MAX_HOSTS) {
+                evictFullest();
+            }
+            Bucket created = new Bucket(maxPerHost);
+            bucket = hostBuckets.putIfAbsent(host, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Makes room for a new host by dropping the bucket with the most tokens left. A full one
+     * loses nothing, since it would be recreated full; drained buckets are kept, otherwise
+     * a multi-host outage would get a fresh burst of retries for every host evicted.
+     */
+    private void evictFullest() {
+        Map.Entry<String, Bucket> fullest = null;
+        for (Map.Entry<String, Bucket> entry : hostBuckets.entrySet()) {
+            if (fullest == null || entry.getValue().tokens.get() > fullest.getValue().tokens.get()) {
+                fullest = entry;
+            }
+        }
+        if (fullest != null) {
+            hostBuckets.remove(fullest.getKey(), fullest.getValue());
+        }
+    }
+
+    private static final class Bucket {
+
+        private final long capacity;
+        private final AtomicLong tokens;
+
+        Bucket(long capacity) {
+            this.capacity = capacity;
+            this.tokens = new AtomicLong(capacity);
+        }
+
+        void deposit(long amount) {
+            while (true) {
+                long current = tokens.get();
+                long next = Math.min(capacity, current + amount);
+                if (next == current || tokens.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        boolean withdraw(long amount) {
+            while (true) {
+                long current = tokens.get();
+                if (current < amount) {
+                    return false;
+                }
+                if (tokens.compareAndSet(current, current - amount)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
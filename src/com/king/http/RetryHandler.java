@@ -5,9 +5,11 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLHandshakeException;
 
+import org.apache.http.HttpHost;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.HttpRequestRetryHandler;
@@ -17,6 +19,10 @@ import org.apache.http.protocol.HttpContext;
 import android.os.SystemClock;
 
 class RetryHandler implements HttpRequestRetryHandler {
+    /**
+     * Context attribute with the {@link System#nanoTime()} deadline of the request, a Long.
+     */
+    static final String DEADLINE_ATTRIBUTE = "com.king.http.deadline";
     private static final int RETRY_SLEEP_TIME_MILLIS = 1500;
     private static HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
     private static HashSet<Class<?>> exceptionBlacklist = new HashSet<Class<?>>();
@@ -39,11 +45,19 @@ class RetryHandler implements HttpRequestRetryHandler {
     }
 
     private final int maxRetries;
+    private volatile RetryBudget retryBudget;
 
     public RetryHandler(int maxRetries) {
         this.maxRetries = maxRetries;
     }
 
+    /**
+     * @param retryBudget every retry has to be paid from it, null retries without limit
+     */
+    void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
     public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
         boolean retry = true;
 
@@ -66,8 +80,21 @@ class RetryHandler implements HttpRequestRetryHandler {
         if(retry) {
         	// 重新发送所有的idempotent请求
             HttpUriRequest currentReq = (HttpUriRequest) context.getAttribute( ExecutionContext.HTTP_REQUEST );
-            String requestType = currentReq.getMethod();
-            retry = !requestType.equals("POST");
+            // transport没来得及记下请求时不知道是不是POST, 不重试
+            retry = currentReq != null && !"POST".equals(currentReq.getMethod());
+        }
+
+        Long deadline = (Long) context.getAttribute(DEADLINE_ATTRIBUTE);
+        if(retry && deadline != null
+                && deadline.longValue() - System.nanoTime() <= TimeUnit.MILLISECONDS.toNanos(RETRY_SLEEP_TIME_MILLIS)) {
+        	// 等待之后已经过了截止时间, 重试也没有意义
+            retry = false;
+        }
+
+        RetryBudget budget = retryBudget;
+        if(retry && budget != null) {
+        	// 预算用完就不再重试, 避免故障时重试放大流量
+            retry = budget.tryAcquire(targetHost(context));
         }
 
         if(retry) {
@@ -78,4 +105,14 @@ class RetryHandler implements HttpRequestRetryHandler {
 
         return retry;
     }
+
+    private static String targetHost(HttpContext context) {
+        Object target = context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        if (target instanceof HttpHost) {
+            return ((HttpHost) target).getHostName();
+        }
+        HttpUriRequest request = (HttpUriRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        String host = request != null ? request.getURI().getHost() : null;
+        return String.valueOf(host);
+    }
 }
\ No newline at end of file
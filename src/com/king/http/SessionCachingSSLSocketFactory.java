@@ -0,0 +1,245 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.params.HttpParams;
+
+/**
+ * https socket factory that resumes TLS sessions instead of doing a full handshake on every
+ * new pooled connection. The TCP connection is made first, by a {@link HappyEyeballsSocketFactory}, and TLS layered on top with the
+ * target's host and port, which is what the platform's client session cache is keyed by;
+ * <code>SSLSocketFactory.getSocketFactory()</code> connects the SSL socket unlayered and loses
+ * that key on most platforms.
+ *
+ * At most <code>maxSessions</code> hosts are remembered (least recently used are dropped), and
+ * a session is not offered for resumption once <code>sessionLifetimeMillis</code> after its full
+ * handshake have passed, even if the server's ticket would still be accepted.
+ */
+public class SessionCachingSSLSocketFactory implements LayeredSocketFactory {
+
+    public static final int DEFAULT_MAX_SESSIONS = 32;
+    public static final long DEFAULT_SESSION_LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    private final javax.net.ssl.SSLSocketFactory socketFactory;
+    private final int maxSessions;
+    private final long sessionLifetimeMillis;
+    // host:port -> 最近一次完整握手的会话, 按访问顺序淘汰
+    private final Map<String, CachedSession> sessions;
+    private volatile X509HostnameVerifier hostnameVerifier = SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+    private final HappyEyeballsSocketFactory connector = new HappyEyeballsSocketFactory();
+
+    private final AtomicInteger fullHandshakes = new AtomicInteger();
+    private final AtomicInteger resumedHandshakes = new AtomicInteger();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
+    public SessionCachingSSLSocketFactory() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_SESSION_LIFETIME_MILLIS);
+    }
+
+    public SessionCachingSSLSocketFactory(int maxSessions, long sessionLifetimeMillis) {
+        this(defaultContext(), maxSessions, sessionLifetimeMillis);
+    }
+
+    /**
+     * @param sslContext supplies trust managers and the session cache; should not be shared with
+     *        code that sizes the cache differently
+     */
+    public SessionCachingSSLSocketFactory(SSLContext sslContext, int maxSessions, long sessionLifetimeMillis) {
+        if (maxSessions <= 0 || sessionLifetimeMillis <= 0) {
+            throw new IllegalArgumentException("Session cache size and lifetime must be positive");
+        }
+        this.socketFactory = sslContext.getSocketFactory();
+        this.maxSessions = maxSessions;
+        this.sessionLifetimeMillis = sessionLifetimeMillis;
+        this.sessions = new LinkedHashMap<String, CachedSession>(16, 0.75f, true);
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            // 平台缓存要能放下我们记住的所有host, 超时向上取整到秒
+            sessionContext.setSessionCacheSize(Math.max(sessionContext.getSessionCacheSize(), maxSessions));
+            sessionContext.setSessionTimeout((int) ((sessionLifetimeMillis + 999) / 1000));
+        }
+    }
+
+    private static SSLContext defaultContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("TLS is not available", e);
+        }
+    }
+
+    public void setHostnameVerifier(X509HostnameVerifier hostnameVerifier) {
+        if (hostnameVerifier == null) {
+            throw new IllegalArgumentException("Hostname verifier may not be null");
+        }
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        connector.setDnsResolver(dnsResolver);
+    }
+
+    /**
+     * Socket factory over the same session cache, for transports that do their own connecting
+     * such as {@link com.king.http.transport.Http2Transport}. Sessions it creates are resumed by
+     * the platform but not counted here.
+     */
+    public javax.net.ssl.SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * @see HappyEyeballsSocketFactory#setAttemptDelayMillis(long)
+     */
+    public void setAttemptDelayMillis(long attemptDelayMillis) {
+        connector.setAttemptDelayMillis(attemptDelayMillis);
+    }
+
+    @Override
+    public Socket createSocket() {
+        // 先建普通TCP连接, 连上之后再套SSL
+        return connector.createSocket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+            HttpParams params) throws IOException {
+        // 握手也受读超时限制, connector已经设好
+        Socket socket = connector.connectSocket(sock, host, port, localAddress, localPort, params);
+        return createSocket(socket, host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        SSLSocket ssl = (SSLSocket) socketFactory.createSocket(socket, host, port, autoClose);
+        try {
+            handshake(ssl, host, port);
+        } catch (IOException e) {
+            ssl.close();
+            throw e;
+        }
+        return ssl;
+    }
+
+    @Override
+    public boolean isSecure(Socket sock) {
+        if (sock == null) {
+            throw new IllegalArgumentException("Socket may not be null");
+        }
+        return sock instanceof SSLSocket && !sock.isClosed();
+    }
+
+    private void handshake(SSLSocket ssl, String host, int port) throws IOException {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+        CachedSession cached = takeValid(key, now);
+        long start = System.nanoTime();
+        ssl.startHandshake();
+        long elapsed = System.nanoTime() - start;
+        hostnameVerifier.verify(host, ssl);
+
+        SSLSession session = ssl.getSession();
+        // 复用的会话id不变; TLS 1.3下id每次都变, 但创建时间沿用被复用的会话
+        boolean resumed = cached != null && (Arrays.equals(cached.id, session.getId())
+                || session.getCreationTime() == cached.session.getCreationTime());
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(elapsed);
+            put(key, cached);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeNanos.addAndGet(elapsed);
+            put(key, new CachedSession(session, now));
+        }
+    }
+
+    /**
+     * @return the remembered session for the host, or null after invalidating an expired one so
+     *         the platform does a full handshake
+     */
+    private CachedSession takeValid(String key, long now) {
+        synchronized (sessions) {
+            CachedSession cached = sessions.get(key);
+            if (cached != null && now - cached.handshakeAt >= sessionLifetimeMillis) {
+                sessions.remove(key);
+                cached.session.invalidate();
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private void put(String key, CachedSession cached) {
+        synchronized (sessions) {
+            sessions.put(key, cached);
+            Iterator<CachedSession> it = sessions.values().iterator();
+            while (sessions.size() > maxSessions && it.hasNext()) {
+                CachedSession eldest = it.next();
+                it.remove();
+                eldest.session.invalidate();
+            }
+        }
+    }
+
+    public int getFullHandshakeCount() {
+        return fullHandshakes.get();
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return share of handshakes that resumed a session, 0 before the first one
+     */
+    public float getResumptionRate() {
+        int resumed = resumedHandshakes.get();
+        int total = resumed + fullHandshakes.get();
+        return total == 0 ? 0f : (float) resumed / total;
+    }
+
+    public long getAverageFullHandshakeMillis() {
+        return average(fullHandshakeNanos.get(), fullHandshakes.get());
+    }
+
+    public long getAverageResumedHandshakeMillis() {
+        return average(resumedHandshakeNanos.get(), resumedHandshakes.get());
+    }
+
+    private static long average(long nanos, int count) {
+        return count == 0 ? 0 : nanos / count / 1000000;
+    }
+
+    private static final class CachedSession {
+
+        final SSLSession session;
+        final byte[] id;
+        final long handshakeAt;
+
+        CachedSession(SSLSession session, long handshakeAt) {
+            this.session = session;
+            this.id = session.getId();
+            this.handshakeAt = handshakeAt;
+        }
+    }
+}
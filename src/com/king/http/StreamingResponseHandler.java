@@ -0,0 +1,281 @@
+package com.king.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Bridges the entity stream of a response to a {@link BodySubscriber}. Instead of buffering
+ * the whole body, the request thread reads one chunk per unit of demand and otherwise parks,
+ * so a slow consumer is pushed back onto the socket (TCP flow control) rather than onto the heap.
+ */
+class StreamingResponseHandler extends HttpResponseHandler implements BodySubscription {
+
+    static final int CHUNK_SIZE = 8192;
+
+    private final BodySubscriber subscriber;
+    // 请求线程会长时间等待需求, 用Lock避免在虚拟线程上pin住carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition demanded = lock.newCondition();
+    private long demand;
+    private boolean cancelled;
+    private boolean terminated;
+    // request(n <= 0)的错误, 由请求线程发出, 不和onNext并发
+    private Throwable pendingError;
+    private HttpUriRequest activeRequest;
+    private Future<?> requestFuture;
+
+    StreamingResponseHandler(BodySubscriber subscriber) {
+        this.subscriber = subscriber;
+        setCallbackExecutor(CallbackExecutors.direct());
+    }
+
+    void setRequestFuture(Future<?> requestFuture) {
+        lock.lock();
+        try {
+            this.requestFuture = requestFuture;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called on the subscribing thread right after onSubscribe, before the request is sent.
+     *
+     * @return true if the subscriber already failed the stream there; the error has been
+     *         delivered and the request must not be sent
+     */
+    boolean signalPendingError() {
+        Throwable error;
+        lock.lock();
+        try {
+            if (pendingError == null || terminated || cancelled) {
+                return false;
+            }
+            error = pendingError;
+            terminated = true;
+        } finally {
+            lock.unlock();
+        }
+        subscriber.onError(error);
+        return true;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            HttpUriRequest toAbort;
+            lock.lock();
+            try {
+                if (terminated || cancelled || pendingError != null) {
+                    return;
+                }
+                pendingError = new IllegalArgumentException("non-positive request: " + n);
+                toAbort = activeRequest;
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (toAbort != null) {
+                // 请求线程可能阻塞在read上; abort后它发出的是pendingError
+                toAbort.abort();
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            demand += n;
+            if (demand < 0) {
+                // 溢出, 视为无限
+                demand = Long.MAX_VALUE;
+            }
+            demanded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        HttpUriRequest toAbort;
+        Future<?> toCancel;
+        lock.lock();
+        try {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toAbort = activeRequest;
+            toCancel = requestFuture;
+            demanded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (toAbort != null) {
+            // 唤醒阻塞在socket read上的线程
+            toAbort.abort();
+        } else if (toCancel != null) {
+            toCancel.cancel(true);
+        }
+    }
+
+    @Override
+    protected void sendStartMessage() {
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        signalError(e);
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        signalError(e);
+    }
+
+    /**
+     * Pumps the entity to the subscriber on the request thread. Read errors are delivered to
+     * the subscriber and never thrown, a partially delivered body must not be retried.
+     */
+    void sendStreamingResponse(HttpUriRequest request, HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        boolean cancelledBeforeBody;
+        Throwable failure;
+        lock.lock();
+        try {
+            activeRequest = request;
+            cancelledBeforeBody = cancelled;
+            failure = pendingError;
+        } finally {
+            lock.unlock();
+        }
+        if (cancelledBeforeBody || failure != null) {
+            // 不要close, close会把剩下的body读完
+            request.abort();
+            if (failure != null) {
+                signalError(failure);
+            }
+            return;
+        }
+        if (status.getStatusCode() >= 300) {
+            request.abort();
+            signalError(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()));
+            return;
+        }
+        if (entity == null) {
+            signalComplete();
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = entity.getContent();
+            while (true) {
+                lock.lock();
+                try {
+                    while (demand == 0 && !cancelled && pendingError == null) {
+                        demanded.await();
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    failure = pendingError;
+                } finally {
+                    lock.unlock();
+                }
+                if (failure != null) {
+                    request.abort();
+                    signalError(failure);
+                    return;
+                }
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read = in.read(buffer);
+                if (read == -1) {
+                    signalComplete();
+                    return;
+                }
+                lock.lock();
+                try {
+                    if (cancelled) {
+                        return;
+                    }
+                    failure = pendingError;
+                    demand--;
+                } finally {
+                    lock.unlock();
+                }
+                if (failure != null) {
+                    request.abort();
+                    signalError(failure);
+                    return;
+                }
+                subscriber.onNext(ByteBuffer.wrap(buffer, 0, read));
+            }
+        } catch (IOException e) {
+            signalError(e);
+        } catch (InterruptedException e) {
+            request.abort();
+            signalError(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // 取消时abort过的连接, close可能失败
+                }
+            }
+        }
+    }
+
+    private void signalError(Throwable e) {
+        lock.lock();
+        try {
+            if (terminated || cancelled) {
+                return;
+            }
+            terminated = true;
+            if (pendingError != null) {
+                // 读失败多半是request(n <= 0)时abort引起的, 报告真正的原因
+                e = pendingError;
+            }
+        } finally {
+            lock.unlock();
+        }
+        subscriber.onError(e);
+    }
+
+    private void signalComplete() {
+        lock.lock();
+        try {
+            if (terminated || cancelled) {
+                return;
+            }
+            terminated = true;
+        } finally {
+            lock.unlock();
+        }
+        subscriber.onComplete();
+    }
+}
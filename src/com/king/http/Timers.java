@@ -0,0 +1,42 @@
+package com.king.http;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One daemon timer thread for the client's delayed actions. Tasks must only hand work off,
+ * never block or do I/O themselves.
+ *
+ * Most timers (deadlines, hedges, batches) are cancelled long before they are due, and a
+ * cancelled task stays in the queue, with the request and handler it refers to, until its
+ * delay is over. setRemoveOnCancelPolicy needs Java 7 / Android 5, so the queue is purged
+ * instead every {@link #PURGE_INTERVAL} scheduled tasks.
+ */
+final class Timers {
+
+    static final int PURGE_INTERVAL = 128;
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER =
+            new ScheduledThreadPoolExecutor(1, new KingThreadFactory("king-timer"));
+    private static final AtomicInteger scheduled = new AtomicInteger();
+
+    private static final Runnable PURGE = new Runnable() {
+        @Override
+        public void run() {
+            SCHEDULER.purge();
+        }
+    };
+
+    private Timers() {
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        if (scheduled.incrementAndGet() % PURGE_INTERVAL == 0) {
+            // 在计时线程上清理, 不占调用方的时间
+            SCHEDULER.execute(PURGE);
+        }
+        return SCHEDULER.schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+}
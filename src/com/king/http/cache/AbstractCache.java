@@ -12,6 +12,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
 import android.os.Environment;
@@ -56,6 +57,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
 
     private long expirationInMinutes;
 
+    /**
+     * Guards the memory/disk write-through. A lock rather than <code>synchronized</code>, since
+     * disk reads happen while it is held and a virtual thread blocking inside a monitor would
+     * pin its carrier thread.
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
+
     /**
      * Creates a new cache instance.
      * 
@@ -236,47 +244,52 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized ValT get(Object elementKey) {
-        KeyT key = (KeyT) elementKey;
-        ValT value = cache.get(key);
-        if (value != null) {
-            // memory hit
-            Log.d(name, "MEM cache hit for " + key.toString());
-            return value;
-        }
-
-        // memory miss, try reading from disk
-        File file = getFileForKey(key);
-        if (file.exists()) {
-            // if file older than expirationInMinutes, remove it
-            long lastModified = file.lastModified();
-            Date now = new Date();
-            long ageInMinutes = ((now.getTime() - lastModified) / (1000 * 60));
-
-            if (ageInMinutes >= expirationInMinutes) {
-                Log.d(name, "DISK cache expiration for file " + file.toString());
-                file.delete();
-                return null;
+    public ValT get(Object elementKey) {
+        lock.lock();
+        try {
+            KeyT key = (KeyT) elementKey;
+            ValT value = cache.get(key);
+            if (value != null) {
+                // memory hit
+                Log.d(name, "MEM cache hit for " + key.toString());
+                return value;
             }
 
-            // disk hit
-            Log.d(name, "DISK cache hit for " + key.toString());
-            try {
-                value = readValueFromDisk(file);
-            } catch (IOException e) {
-                // treat decoding errors as a cache miss
-                e.printStackTrace();
-                return null;
-            }
-            if (value == null) {
-                return null;
+            // memory miss, try reading from disk
+            File file = getFileForKey(key);
+            if (file.exists()) {
+                // if file older than expirationInMinutes, remove it
+                long lastModified = file.lastModified();
+                Date now = new Date();
+                long ageInMinutes = ((now.getTime() - lastModified) / (1000 * 60));
+
+                if (ageInMinutes >= expirationInMinutes) {
+                    Log.d(name, "DISK cache expiration for file " + file.toString());
+                    file.delete();
+                    return null;
+                }
+
+                // disk hit
+                Log.d(name, "DISK cache hit for " + key.toString());
+                try {
+                    value = readValueFromDisk(file);
+                } catch (IOException e) {
+                    // treat decoding errors as a cache miss
+                    e.printStackTrace();
+                    return null;
+                }
+                if (value == null) {
+                    return null;
+                }
+                cache.put(key, value);
+                return value;
             }
-            cache.put(key, value);
-            return value;
-        }
 
-        // cache miss
-        return null;
+            // cache miss
+            return null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -284,16 +297,21 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * the disk, which may introduce a performance penalty.
      */
     @Override
-    public synchronized ValT put(KeyT key, ValT value) {
-        if (isDiskCacheEnabled) {
-            cacheToDisk(key, value);
-        }
+    public ValT put(KeyT key, ValT value) {
+        lock.lock();
+        try {
+            if (isDiskCacheEnabled) {
+                cacheToDisk(key, value);
+            }
 
-        return cache.put(key, value);
+            return cache.put(key, value);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void putAll(Map<? extends KeyT, ? extends ValT> t) {
+    public void putAll(Map<? extends KeyT, ? extends ValT> t) {
         throw new UnsupportedOperationException();
     }
 
@@ -306,8 +324,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * @return true if the value is cached in memory or on disk, false otherwise
      */
     @Override
-    public synchronized boolean containsKey(Object key) {
-        return cache.containsKey(key) || containsKeyOnDisk(key);
+    public boolean containsKey(Object key) {
+        lock.lock();
+        try {
+            return cache.containsKey(key) || containsKeyOnDisk(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -317,8 +340,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      *            the cache key
      * @return true if the value is currently hold in memory, false otherwise
      */
-    public synchronized boolean containsKeyInMemory(Object key) {
-        return cache.containsKey(key);
+    public boolean containsKeyInMemory(Object key) {
+        lock.lock();
+        try {
+            return cache.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -330,8 +358,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      *         cache is disabled.
      */
     @SuppressWarnings("unchecked")
-    public synchronized boolean containsKeyOnDisk(Object key) {
-        return isDiskCacheEnabled && getFileForKey((KeyT) key).exists();
+    public boolean containsKeyOnDisk(Object key) {
+        lock.lock();
+        try {
+            return isDiskCacheEnabled && getFileForKey((KeyT) key).exists();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -339,8 +372,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * does NOT probe the disk cache.
      */
     @Override
-    public synchronized boolean containsValue(Object value) {
-        return cache.containsValue(value);
+    public boolean containsValue(Object value) {
+        lock.lock();
+        try {
+            return cache.containsValue(value);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -348,17 +386,22 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized ValT remove(Object key) {
-        ValT value = removeKey(key);
+    public ValT remove(Object key) {
+        lock.lock();
+        try {
+            ValT value = removeKey(key);
 
-        if (isDiskCacheEnabled) {
-            File cachedValue = getFileForKey((KeyT) key);
-            if (cachedValue.exists()) {
-                cachedValue.delete();
+            if (isDiskCacheEnabled) {
+                File cachedValue = getFileForKey((KeyT) key);
+                if (cachedValue.exists()) {
+                    cachedValue.delete();
+                }
             }
-        }
 
-        return value;
+            return value;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -383,13 +426,23 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     }
 
     @Override
-    public synchronized int size() {
-        return cache.size();
+    public int size() {
+        lock.lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized boolean isEmpty() {
-        return cache.isEmpty();
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return cache.isEmpty();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isDiskCacheEnabled() {
@@ -429,8 +482,13 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * Clears the entire cache (memory and disk).
      */
     @Override
-    public synchronized void clear() {
-        clear(isDiskCacheEnabled);
+    public void clear() {
+        lock.lock();
+        try {
+            clear(isDiskCacheEnabled);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -440,20 +498,25 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * @param removeFromDisk
      *            whether or not to wipe the disk cache, too
      */
-    public synchronized void clear(boolean removeFromDisk) {
-        cache.clear();
-
-        if (removeFromDisk && isDiskCacheEnabled) {
-            File[] cachedFiles = new File(diskCacheDirectory).listFiles();
-            if (cachedFiles == null) {
-                return;
-            }
-            for (File f : cachedFiles) {
-                f.delete();
+    public void clear(boolean removeFromDisk) {
+        lock.lock();
+        try {
+            cache.clear();
+
+            if (removeFromDisk && isDiskCacheEnabled) {
+                File[] cachedFiles = new File(diskCacheDirectory).listFiles();
+                if (cachedFiles == null) {
+                    return;
+                }
+                for (File f : cachedFiles) {
+                    f.delete();
+                }
             }
-        }
 
-        Log.d(LOG_TAG, "Cache cleared");
+            Log.d(LOG_TAG, "Cache cleared");
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
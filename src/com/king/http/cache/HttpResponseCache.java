@@ -23,8 +23,13 @@ public class HttpResponseCache extends AbstractCache<String, ResponseData> {
         super("HttpCache", initialCapacity, expirationInMinutes, maxConcurrentThreads);
     }
 
-    public synchronized void removeAllWithPrefix(String urlPrefix) {
-        CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
+    public void removeAllWithPrefix(String urlPrefix) {
+        lock.lock();
+        try {
+            CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
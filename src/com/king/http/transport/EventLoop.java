@@ -0,0 +1,131 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread multiplexing many {@link NioConnection}s. Everything that touches a
+ * connection's channel runs on this thread; other threads hand work over with {@link #execute}.
+ */
+final class EventLoop implements Runnable {
+
+    private static final long SELECT_TIMEOUT = 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // 同一个loop上的连接轮流使用这一块direct buffer读数据
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long lastExpiryCheck;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (IOException e) {
+                continue;
+            }
+            runTasks();
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                dispatch(key);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastExpiryCheck >= SELECT_TIMEOUT) {
+                lastExpiryCheck = now;
+                closeExpired(now);
+            }
+        }
+        runTasks();
+        for (NioConnection connection : connections()) {
+            connection.close(new IOException("Transport shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // 一个任务出错不能停掉整个循环, 其他连接还在等它
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                connection.onConnectable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable(readBuffer);
+            }
+        } catch (CancelledKeyException e) {
+            connection.close(new IOException("Connection closed"));
+        } catch (RuntimeException e) {
+            connection.close(NioConnection.wrap(e));
+        }
+    }
+
+    private void closeExpired(long now) {
+        for (NioConnection connection : connections()) {
+            connection.closeIfExpired(now);
+        }
+    }
+
+    private List<NioConnection> connections() {
+        List<NioConnection> connections = new ArrayList<NioConnection>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                connections.add((NioConnection) key.attachment());
+            }
+        }
+        return connections;
+    }
+}
@@ -0,0 +1,160 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import com.king.http.AsyncHttpTransport;
+
+/**
+ * One request/response on a {@link NioConnection}. The event loop moves it forward; the
+ * request thread either waits on it for the response head or, for an asynchronous exchange,
+ * the callback gets the whole response once the body has been read.
+ */
+final class Exchange {
+
+    final ByteBuffer requestBytes;
+    final boolean headRequest;
+    final int readTimeout;
+    final int connectTimeout;
+    // 异步的exchange才有, 由事件循环调用
+    final AsyncHttpTransport.Callback callback;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private boolean connected;
+    private boolean sent;
+    private HttpResponse response;
+    private IOException failure;
+
+    Exchange(ByteBuffer requestBytes, boolean headRequest, int readTimeout) {
+        this(requestBytes, headRequest, readTimeout, 0, null);
+    }
+
+    Exchange(ByteBuffer requestBytes, boolean headRequest, int readTimeout, int connectTimeout,
+            AsyncHttpTransport.Callback callback) {
+        this.requestBytes = requestBytes;
+        this.headRequest = headRequest;
+        this.readTimeout = readTimeout;
+        this.connectTimeout = connectTimeout;
+        this.callback = callback;
+    }
+
+    boolean isAsync() {
+        return callback != null;
+    }
+
+    boolean isConnected() {
+        lock.lock();
+        try {
+            return connected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void connected() {
+        lock.lock();
+        try {
+            connected = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void requestSent() {
+        lock.lock();
+        try {
+            sent = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isSent() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * For an asynchronous exchange called once the body is complete as well.
+     */
+    void headReceived(HttpResponse head) {
+        lock.lock();
+        try {
+            if (response != null || failure != null) {
+                return;
+            }
+            response = head;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (callback != null) {
+            callback.completed(head);
+        }
+    }
+
+    /**
+     * Fails the exchange if the head has not arrived yet; afterwards failures go to the body stream.
+     */
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            if (response != null || failure != null) {
+                return;
+            }
+            failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (callback != null) {
+            callback.failed(e);
+        }
+    }
+
+    /**
+     * @param timeoutMillis 0 waits forever
+     */
+    HttpResponse awaitHead(long timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (response == null && failure == null) {
+                try {
+                    if (timeoutMillis <= 0) {
+                        changed.await();
+                    } else {
+                        if (waitNanos <= 0) {
+                            if (!connected) {
+                                throw new ConnectTimeoutException("Connect timed out");
+                            }
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        waitNanos = changed.awaitNanos(waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
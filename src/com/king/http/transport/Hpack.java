@@ -0,0 +1,272 @@
+package com.king.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HPACK header compression, RFC 7541. The decoder is complete: dynamic table, size updates and
+ * Huffman strings. The encoder never adds to the dynamic table, it sends static table references
+ * and literals without indexing, so it needs no state shared with the peer beyond the static
+ * table and cannot get out of sync when a stream is reset.
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+            { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+            { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+            { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+            { "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+            { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+            { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+            { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+            { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+            { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+            { "vary", "" }, { "via", "" }, { "www-authenticate", "" }
+    };
+
+    // name -> 静态表中第一个同名条目的索引(1开始); name + '\0' + value -> 完全匹配的索引
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    static final class Encoder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        /**
+         * Appends one field, <code>name</code> must already be lower case.
+         */
+        void header(String name, String value) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(0x80, 7, exact);
+                return;
+            }
+            Integer nameIndex = STATIC_NAMES.get(name);
+            // 不进动态表的literal, 敏感字段用never indexed, 中间代理也不会缓存
+            int flags = isSensitive(name) ? 0x10 : 0x00;
+            if (nameIndex != null) {
+                writeInt(flags, 4, nameIndex);
+            } else {
+                writeInt(flags, 4, 0);
+                writeString(name);
+            }
+            writeString(value);
+        }
+
+        /**
+         * @return the header block so far, and resets the encoder for the next one
+         */
+        byte[] toByteArray() {
+            byte[] block = out.toByteArray();
+            out.reset();
+            return block;
+        }
+
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "cookie".equals(name) || "proxy-authorization".equals(name);
+        }
+
+        private void writeString(String s) {
+            int huffmanLength = Huffman.encodedLength(s);
+            if (huffmanLength < s.length()) {
+                writeInt(0x80, 7, huffmanLength);
+                Huffman.encode(s, out);
+            } else {
+                writeInt(0x00, 7, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(s.charAt(i));
+                }
+            }
+        }
+
+        private void writeInt(int flags, int prefixBits, int value) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    static final class Decoder {
+
+        // 最新的条目在最前面, 与动态表索引顺序一致
+        private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+        private final int maxAllowedSize;
+        private int maxSize;
+        private int size;
+        private byte[] block;
+        private int position;
+        private int limit;
+
+        /**
+         * @param maxAllowedSize the SETTINGS_HEADER_TABLE_SIZE we advertised
+         */
+        Decoder(int maxAllowedSize) {
+            this.maxAllowedSize = maxAllowedSize;
+            this.maxSize = maxAllowedSize;
+        }
+
+        /**
+         * Decodes a complete header block, i.e. HEADERS plus all CONTINUATION fragments.
+         * Any failure here is a connection error, the tables can no longer be trusted.
+         */
+        List<Header> decode(byte[] block, int offset, int length) throws IOException {
+            this.block = block;
+            this.position = offset;
+            this.limit = offset + length;
+            List<Header> headers = new ArrayList<Header>();
+            boolean fieldSeen = false;
+            while (position < limit) {
+                int b = block[position] & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] field = get(readInt(7));
+                    headers.add(new BasicHeader(field[0], field[1]));
+                    fieldSeen = true;
+                } else if ((b & 0xc0) == 0x40) {
+                    String[] field = readLiteral(6);
+                    add(field);
+                    headers.add(new BasicHeader(field[0], field[1]));
+                    fieldSeen = true;
+                } else if ((b & 0xe0) == 0x20) {
+                    if (fieldSeen) {
+                        throw new IOException("HPACK table size update after header field");
+                    }
+                    int newSize = readInt(5);
+                    if (newSize > maxAllowedSize) {
+                        throw new IOException("HPACK table size " + newSize + " exceeds " + maxAllowedSize);
+                    }
+                    maxSize = newSize;
+                    evict(0);
+                } else {
+                    // 0000xxxx without indexing, 0001xxxx never indexed
+                    String[] field = readLiteral(4);
+                    headers.add(new BasicHeader(field[0], field[1]));
+                    fieldSeen = true;
+                }
+            }
+            this.block = null;
+            return headers;
+        }
+
+        private String[] readLiteral(int prefixBits) throws IOException {
+            int index = readInt(prefixBits);
+            String name = index == 0 ? readString() : get(index)[0];
+            return new String[] { name, readString() };
+        }
+
+        private String[] get(int index) throws IOException {
+            if (index <= 0) {
+                throw new IOException("HPACK index 0");
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            index -= STATIC_TABLE.length + 1;
+            if (index >= dynamicTable.size()) {
+                throw new IOException("HPACK index out of range");
+            }
+            return dynamicTable.get(index);
+        }
+
+        private void add(String[] field) {
+            int entrySize = field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+            if (entrySize > maxSize) {
+                // 比整张表还大: 清空表, 不加入
+                dynamicTable.clear();
+                size = 0;
+                return;
+            }
+            evict(entrySize);
+            dynamicTable.addFirst(field);
+            size += entrySize;
+        }
+
+        private void evict(int room) {
+            while (size + room > maxSize && !dynamicTable.isEmpty()) {
+                String[] oldest = dynamicTable.removeLast();
+                size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (position >= limit) {
+                    throw new IOException("Truncated HPACK integer");
+                }
+                if (shift > 21) {
+                    throw new IOException("HPACK integer overflow");
+                }
+                b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws IOException {
+            if (position >= limit) {
+                throw new IOException("Truncated HPACK string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > limit - position) {
+                throw new IOException("Truncated HPACK string");
+            }
+            String s;
+            if (huffman) {
+                s = Huffman.decode(block, position, length);
+            } else {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char) (block[position + i] & 0xff);
+                }
+                s = new String(chars);
+            }
+            position += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.king.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Serializes a request into HTTP/1.1 wire format. Request entities are buffered, which suits
+ * the API calls this engine is meant for; large uploads are better left to the default transport.
+ */
+final class Http1RequestWriter {
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+    private Http1RequestWriter() {
+    }
+
+    static ByteBuffer encode(HttpUriRequest request, String userAgent) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        URI uri = request.getURI();
+        String path = uri.getRawPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+        writeLine(out, request.getMethod() + " " + path + " HTTP/1.1");
+
+        if (!request.containsHeader("Host")) {
+            writeLine(out, "Host: " + (uri.getPort() != -1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost()));
+        }
+        if (userAgent != null && !request.containsHeader("User-Agent")) {
+            writeLine(out, "User-Agent: " + userAgent);
+        }
+
+        byte[] body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                ByteArrayOutputStream bodyOut = new ByteArrayOutputStream(
+                        entity.getContentLength() > 0 ? (int) entity.getContentLength() : 256);
+                entity.writeTo(bodyOut);
+                body = bodyOut.toByteArray();
+                if (entity.getContentType() != null && !request.containsHeader("Content-Type")) {
+                    writeHeader(out, entity.getContentType());
+                }
+                if (entity.getContentEncoding() != null && !request.containsHeader("Content-Encoding")) {
+                    writeHeader(out, entity.getContentEncoding());
+                }
+            } else {
+                body = new byte[0];
+            }
+        }
+        if (body != null && !request.containsHeader("Content-Length")) {
+            writeLine(out, "Content-Length: " + body.length);
+        }
+
+        for (Header header : request.getAllHeaders()) {
+            if (header.getName().equalsIgnoreCase("Transfer-Encoding")) {
+                // 已经按Content-Length发送
+                continue;
+            }
+            writeHeader(out, header);
+        }
+        out.write(CRLF);
+        if (body != null) {
+            out.write(body);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, Header header) throws IOException {
+        writeLine(out, header.getName() + ": " + header.getValue());
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) throws IOException {
+        out.write(line.getBytes("ISO-8859-1"));
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,317 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MalformedChunkCodingException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.TruncatedChunkException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+
+/**
+ * Incremental HTTP/1.1 response parser. Bytes are fed as they arrive, in chunks of any size,
+ * so it works both on a selector thread and behind a blocking socket. Body framing follows
+ * RFC 7230 section 3.3.3: no body for HEAD, 1xx, 204 and 304; chunked, Content-Length, or
+ * read-until-close otherwise. Interim 1xx responses are skipped.
+ */
+final class Http1ResponseParser {
+
+    interface Listener {
+        /**
+         * @param contentLength -1 if unknown (chunked or until close)
+         */
+        void onResponseHead(HttpResponse head, boolean hasBody, long contentLength) throws IOException;
+
+        /**
+         * @param data only valid for the duration of the call
+         */
+        void onBody(byte[] data, int offset, int length) throws IOException;
+
+        void onComplete() throws IOException;
+    }
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_HEADER_COUNT = 200;
+
+    private static final int STATUS_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY_FIXED = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_DATA_END = 5;
+    private static final int TRAILERS = 6;
+    private static final int BODY_UNTIL_CLOSE = 7;
+    private static final int DONE = 8;
+
+    private final Listener listener;
+    private final StringBuilder line = new StringBuilder(128);
+    private final byte[] copyBuffer = new byte[8 * 1024];
+
+    private int state = DONE;
+    private boolean headRequest;
+    private boolean started;
+    private boolean keepAlive;
+    private HttpResponse head;
+    private String pendingHeader;
+    private int headerCount;
+    private long remaining;
+
+    Http1ResponseParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Prepares for the response to the next request.
+     */
+    void reset(boolean headRequest) {
+        this.headRequest = headRequest;
+        state = STATUS_LINE;
+        started = false;
+        keepAlive = false;
+        head = null;
+        pendingHeader = null;
+        headerCount = 0;
+        remaining = 0;
+        line.setLength(0);
+    }
+
+    /**
+     * @return true once any byte of the response has been received
+     */
+    boolean hasStarted() {
+        return started;
+    }
+
+    boolean isComplete() {
+        return state == DONE;
+    }
+
+    /**
+     * Only meaningful once the response is complete.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Consumes bytes from the buffer until it is empty or the response is complete. Bytes past
+     * the end of the response are left in the buffer.
+     */
+    void feed(ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining()) {
+            started = true;
+        }
+        while (buffer.hasRemaining() && state != DONE) {
+            switch (state) {
+                case STATUS_LINE:
+                    if (readLine(buffer)) {
+                        parseStatusLine();
+                    }
+                    break;
+                case HEADERS:
+                    if (readLine(buffer)) {
+                        parseHeaderLine();
+                    }
+                    break;
+                case BODY_FIXED:
+                    remaining -= deliver(buffer, remaining);
+                    if (remaining == 0) {
+                        complete();
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        parseChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA:
+                    remaining -= deliver(buffer, remaining);
+                    if (remaining == 0) {
+                        state = CHUNK_DATA_END;
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    if (readLine(buffer)) {
+                        if (line.length() != 0) {
+                            throw new MalformedChunkCodingException("Missing CRLF after chunk data");
+                        }
+                        state = CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(buffer)) {
+                        if (line.length() == 0) {
+                            complete();
+                        }
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    deliver(buffer, Long.MAX_VALUE);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The peer closed the connection. Completes a read-until-close body, fails anything else.
+     */
+    void endOfInput() throws IOException {
+        if (state == BODY_UNTIL_CLOSE) {
+            complete();
+        } else if (state == DONE) {
+            return;
+        } else if (!started) {
+            throw new NoHttpResponseException("The target server failed to respond");
+        } else if (state == CHUNK_SIZE || state == CHUNK_DATA || state == CHUNK_DATA_END || state == TRAILERS) {
+            throw new TruncatedChunkException("Truncated chunk");
+        } else {
+            throw new IOException("Premature end of response");
+        }
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ClientProtocolException("Maximum line length limit exceeded");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void parseStatusLine() throws IOException {
+        StatusLine statusLine;
+        try {
+            statusLine = BasicLineParser.parseStatusLine(line.toString(), null);
+        } catch (ParseException e) {
+            throw new ClientProtocolException(e.getMessage());
+        }
+        line.setLength(0);
+        head = new BasicHttpResponse(statusLine);
+        headerCount = 0;
+        state = HEADERS;
+    }
+
+    private void parseHeaderLine() throws IOException {
+        if (line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && pendingHeader != null) {
+            // obsolete line folding
+            pendingHeader = pendingHeader + ' ' + line.toString().trim();
+            line.setLength(0);
+            return;
+        }
+        if (pendingHeader != null) {
+            addHeader(pendingHeader);
+            pendingHeader = null;
+        }
+        if (line.length() == 0) {
+            onHeadComplete();
+            return;
+        }
+        if (++headerCount > MAX_HEADER_COUNT) {
+            throw new ClientProtocolException("Maximum header count exceeded");
+        }
+        pendingHeader = line.toString();
+        line.setLength(0);
+    }
+
+    private void addHeader(String value) throws IOException {
+        try {
+            head.addHeader(BasicLineParser.parseHeader(value, null));
+        } catch (ParseException e) {
+            throw new ClientProtocolException(e.getMessage());
+        }
+    }
+
+    private void onHeadComplete() throws IOException {
+        int status = head.getStatusLine().getStatusCode();
+        if (status >= 100 && status < 200 && status != HttpStatus.SC_SWITCHING_PROTOCOLS) {
+            // 100-continue之类的中间响应, 继续读真正的响应
+            state = STATUS_LINE;
+            return;
+        }
+        keepAlive = computeKeepAlive();
+
+        boolean hasBody = !headRequest && status != HttpStatus.SC_NO_CONTENT
+                && status != HttpStatus.SC_NOT_MODIFIED;
+        long contentLength = -1;
+        if (hasBody) {
+            Header transferEncoding = head.getLastHeader("Transfer-Encoding");
+            Header length = head.getLastHeader("Content-Length");
+            if (transferEncoding != null && transferEncoding.getValue().toLowerCase().endsWith("chunked")) {
+                state = CHUNK_SIZE;
+            } else if (length != null) {
+                try {
+                    contentLength = Long.parseLong(length.getValue().trim());
+                } catch (NumberFormatException e) {
+                    throw new ClientProtocolException("Invalid Content-Length: " + length.getValue());
+                }
+                if (contentLength < 0) {
+                    throw new ClientProtocolException("Negative Content-Length");
+                }
+                remaining = contentLength;
+                state = BODY_FIXED;
+            } else {
+                keepAlive = false;
+                state = BODY_UNTIL_CLOSE;
+            }
+        }
+        listener.onResponseHead(head, hasBody, contentLength);
+        if (!hasBody || (state == BODY_FIXED && remaining == 0)) {
+            complete();
+        }
+    }
+
+    private boolean computeKeepAlive() {
+        Header connection = head.getLastHeader("Connection");
+        String token = connection != null ? connection.getValue().trim().toLowerCase() : null;
+        if (head.getStatusLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+            return "keep-alive".equals(token);
+        }
+        return !"close".equals(token);
+    }
+
+    private void parseChunkSize() throws IOException {
+        String value = line.toString();
+        line.setLength(0);
+        int extension = value.indexOf(';');
+        if (extension >= 0) {
+            value = value.substring(0, extension);
+        }
+        try {
+            remaining = Long.parseLong(value.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new MalformedChunkCodingException("Bad chunk header: " + value);
+        }
+        state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+    }
+
+    private long deliver(ByteBuffer buffer, long max) throws IOException {
+        int count = (int) Math.min(buffer.remaining(), Math.min(max, copyBuffer.length));
+        buffer.get(copyBuffer, 0, count);
+        listener.onBody(copyBuffer, 0, count);
+        return count;
+    }
+
+    private void complete() throws IOException {
+        state = DONE;
+        listener.onComplete();
+    }
+}
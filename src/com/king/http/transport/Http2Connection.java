@@ -0,0 +1,986 @@
+package com.king.http.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * A multiplexed HTTP/2 connection, RFC 7540. Any number of request threads open streams on it
+ * concurrently, up to the server's SETTINGS_MAX_CONCURRENT_STREAMS; a single reader thread
+ * demultiplexes the incoming frames into their {@link Http2Stream}s.
+ *
+ * Locking: <code>writeLock</code> serializes frames on the socket and is taken before
+ * <code>lock</code>, which guards streams, windows and settings. The reader thread never waits
+ * for anything while holding <code>lock</code>, and never waits for <code>writeLock</code> at
+ * all: a request thread may hold it while blocked on a full socket until the server reads, and
+ * the server may be waiting for us to read. Control frames (RST_STREAM, WINDOW_UPDATE, SETTINGS
+ * and PING acks) are therefore queued and written by whichever thread holds or next releases
+ * <code>writeLock</code>.
+ */
+final class Http2Connection implements Runnable {
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final byte[] PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+
+    static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    // 每个stream的接收窗口, 相当于HTTP/1.1那边NioBodyStream的高水位
+    static final int STREAM_WINDOW = 256 * 1024;
+    static final int CONNECTION_WINDOW = 4 * 1024 * 1024;
+    // 收到服务器SETTINGS之前先按这个并发数算, 免得一开始就被REFUSED_STREAM
+    private static final int INITIAL_MAX_CONCURRENT_STREAMS = 100;
+
+    final String route;
+    private final Http2Transport transport;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final long keepAliveMillis;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // 等着写出去的控制帧, 见sendControl
+    private final ConcurrentLinkedQueue<byte[]> control = new ConcurrentLinkedQueue<byte[]>();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final HashMap<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+    private int nextStreamId = 1;
+    private int activeStreams;
+    private int peerMaxConcurrentStreams = INITIAL_MAX_CONCURRENT_STREAMS;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    private long receiveWindow = CONNECTION_WINDOW;
+    private int unackedBytes;
+    private boolean goingAway;
+    private boolean closed;
+    private IOException closeCause;
+    private long idleSince = System.currentTimeMillis();
+
+    /**
+     * Sends the connection preface; {@link #start()} begins reading.
+     */
+    Http2Connection(Http2Transport transport, String route, Socket socket, long keepAliveMillis) throws IOException {
+        this.transport = transport;
+        this.route = route;
+        this.socket = socket;
+        this.keepAliveMillis = keepAliveMillis;
+        socket.setTcpNoDelay(true);
+        // 读线程靠超时检查空闲
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1000, keepAliveMillis)));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+        out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+
+        writeLock.lock();
+        try {
+            out.write(PREFACE);
+            writeFrameHeader(3 * 6, SETTINGS, 0, 0);
+            writeSetting(SETTINGS_ENABLE_PUSH, 0);
+            writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+            writeSetting(SETTINGS_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+            writeFrameHeader(4, WINDOW_UPDATE, 0, 0);
+            writeInt(CONNECTION_WINDOW - DEFAULT_WINDOW);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void start() {
+        Thread reader = new Thread(this, "king-h2-" + route);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return false once the connection is closed or the server sent GOAWAY
+     */
+    boolean isUsable() {
+        lock.lock();
+        try {
+            return !goingAway && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the stream and sends the request on it. Blocks while the server's concurrent stream
+     * limit is reached, and while the request body waits for flow-control credit; a
+     * {@link #reset} of the stream ends the wait.
+     *
+     * @param stream a new stream of this connection
+     * @param body null or empty for requests without entity
+     */
+    void newStream(Http2Stream stream, List<Header> headers, byte[] body) throws IOException {
+        reserveStream(stream);
+        boolean endStream = body == null || body.length == 0;
+        writeLock.lock();
+        try {
+            boolean refused = false;
+            boolean closeNow = false;
+            lock.lock();
+            try {
+                if (closed || goingAway || stream.failure() != null) {
+                    refused = true;
+                    closeNow = releaseStream();
+                } else {
+                    // stream id必须按发送顺序递增, 所以在writeLock里分配
+                    stream.id = nextStreamId;
+                    nextStreamId += 2;
+                    if (nextStreamId < 0) {
+                        goingAway = true;
+                    }
+                    stream.sendWindow = peerInitialWindow;
+                    stream.receiveWindow = STREAM_WINDOW;
+                    streams.put(stream.id, stream);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (refused) {
+                if (closeNow) {
+                    close(null);
+                }
+                if (stream.failure() != null) {
+                    throw stream.failure();
+                }
+                throw new RefusedStreamException("Connection is going away");
+            }
+            for (Header header : headers) {
+                encoder.header(header.getName(), header.getValue());
+            }
+            try {
+                writeHeaderBlock(stream.id, encoder.toByteArray(), endStream);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        flushControl();
+        if (!endStream) {
+            writeData(stream, body);
+        }
+    }
+
+    private void reserveStream(Http2Stream stream) throws IOException {
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(stream.readTimeout);
+            while (activeStreams >= peerMaxConcurrentStreams && !closed && !goingAway) {
+                if (stream.failure() != null) {
+                    throw stream.failure();
+                }
+                try {
+                    if (stream.readTimeout <= 0) {
+                        changed.await();
+                    } else {
+                        if (waitNanos <= 0) {
+                            throw new SocketTimeoutException("Timed out waiting for a free HTTP/2 stream");
+                        }
+                        waitNanos = changed.awaitNanos(waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed || goingAway) {
+                throw new RefusedStreamException("Connection is going away");
+            }
+            activeStreams++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold <code>lock</code>. Closes the connection once the last stream of a
+     * connection that is going away is done.
+     */
+    private boolean releaseStream() {
+        activeStreams = Math.max(0, activeStreams - 1);
+        changed.signalAll();
+        if (activeStreams == 0) {
+            idleSince = System.currentTimeMillis();
+            return goingAway && !closed;
+        }
+        return false;
+    }
+
+    private void writeData(Http2Stream stream, byte[] body) throws IOException {
+        int offset = 0;
+        while (offset < body.length) {
+            int n;
+            lock.lock();
+            try {
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(stream.readTimeout);
+                while (true) {
+                    if (closed) {
+                        throw closeCause != null ? closeCause : new IOException("Connection closed");
+                    }
+                    if (streams.get(stream.id) != stream) {
+                        if (stream.isFinished()) {
+                            // 服务器不等请求体发完就已经回复完了
+                            return;
+                        }
+                        throw new IOException("Stream " + stream.id + " was reset");
+                    }
+                    n = (int) Math.min(Math.min(stream.sendWindow, sendWindow),
+                            Math.min(peerMaxFrameSize, body.length - offset));
+                    if (n > 0) {
+                        break;
+                    }
+                    try {
+                        if (stream.readTimeout <= 0) {
+                            changed.await();
+                        } else {
+                            if (waitNanos <= 0) {
+                                throw new SocketTimeoutException("Timed out waiting for flow-control window");
+                            }
+                            waitNanos = changed.awaitNanos(waitNanos);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                stream.sendWindow -= n;
+                sendWindow -= n;
+            } finally {
+                lock.unlock();
+            }
+            boolean last = offset + n == body.length;
+            writeLock.lock();
+            try {
+                writeFrameHeader(n, DATA, last ? FLAG_END_STREAM : 0, stream.id);
+                out.write(body, offset, n);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+            flushControl();
+            offset += n;
+        }
+    }
+
+    /**
+     * Called by the body reader: the bytes have left the buffer, hand the credit back to the server.
+     */
+    void consumed(Http2Stream stream, int bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            unackedBytes += bytes;
+            if (unackedBytes >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = unackedBytes;
+                unackedBytes = 0;
+                receiveWindow += connectionIncrement;
+            }
+            if (stream != null && streams.get(stream.id) == stream) {
+                stream.unackedBytes += bytes;
+                if (stream.unackedBytes >= STREAM_WINDOW / 2) {
+                    streamIncrement = stream.unackedBytes;
+                    stream.unackedBytes = 0;
+                    stream.receiveWindow += streamIncrement;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (connectionIncrement > 0) {
+            sendControl(WINDOW_UPDATE, 0, 0, intBytes(connectionIncrement));
+        }
+        if (streamIncrement > 0) {
+            sendControl(WINDOW_UPDATE, 0, stream.id, intBytes(streamIncrement));
+        }
+    }
+
+    /**
+     * Cancels the stream if it is still open: RST_STREAM to the server, <code>cause</code> to the reader.
+     */
+    void reset(Http2Stream stream, int errorCode, IOException cause) {
+        boolean open;
+        boolean closeNow = false;
+        lock.lock();
+        try {
+            open = !closed && streams.get(stream.id) == stream && stream.id != 0;
+            if (open) {
+                streams.remove(stream.id);
+                closeNow = releaseStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+        consumed(stream, stream.fail(cause));
+        if (!open) {
+            // 可能还在reserveStream里等空闲的stream
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (open) {
+            // HEADERS是在writeLock里分配id时写出的, 所以RST_STREAM一定排在它后面
+            sendControl(RST_STREAM, 0, stream.id, intBytes(errorCode));
+        }
+        if (closeNow) {
+            close(null);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (isIdleExpired()) {
+                        close(null);
+                        return;
+                    }
+                    continue;
+                }
+                if (first == -1) {
+                    throw new IOException("Connection closed by server");
+                }
+                int length = (first << 16) | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                readFrame(type, flags, streamId, payload);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private boolean isIdleExpired() {
+        lock.lock();
+        try {
+            return activeStreams == 0 && System.currentTimeMillis() - idleSince >= keepAliveMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        switch (type) {
+        case DATA:
+            readData(flags, streamId, payload);
+            break;
+        case HEADERS:
+            readHeaders(flags, streamId, payload);
+            break;
+        case PRIORITY:
+            if (payload.length != 5) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY length " + payload.length);
+            }
+            break;
+        case RST_STREAM:
+            readRstStream(streamId, payload);
+            break;
+        case SETTINGS:
+            readSettings(flags, streamId, payload);
+            break;
+        case PUSH_PROMISE:
+            throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE with push disabled");
+        case PING:
+            if (payload.length != 8 || streamId != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Malformed PING");
+            }
+            if ((flags & FLAG_ACK) == 0) {
+                sendControl(PING, FLAG_ACK, 0, payload);
+            }
+            break;
+        case GOAWAY:
+            readGoAway(payload);
+            break;
+        case WINDOW_UPDATE:
+            readWindowUpdate(streamId, payload);
+            break;
+        case CONTINUATION:
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        default:
+            // 未知类型的帧按规范忽略
+            break;
+        }
+    }
+
+    private void readData(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Malformed padded DATA");
+            }
+            padding = payload[0] & 0xff;
+            offset = 1;
+        }
+        int dataLength = payload.length - offset - padding;
+        if (dataLength < 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds DATA length");
+        }
+        Http2Stream stream;
+        lock.lock();
+        try {
+            receiveWindow -= payload.length;
+            if (receiveWindow < 0) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+            }
+            stream = streams.get(streamId);
+            if (stream != null) {
+                stream.receiveWindow -= payload.length;
+                if (stream.receiveWindow < 0) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window exceeded");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (stream == null) {
+            // 已经取消的stream, 数据直接丢掉, 但连接窗口要还回去
+            consumed(null, payload.length);
+            return;
+        }
+        int credit = payload.length - dataLength;
+        if (dataLength > 0) {
+            byte[] data = new byte[dataLength];
+            System.arraycopy(payload, offset, data, 0, dataLength);
+            if (!stream.push(data)) {
+                credit += dataLength;
+            }
+        }
+        consumed(stream, credit);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            endStream(stream);
+        }
+    }
+
+    private void readHeaders(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Malformed padded HEADERS");
+            }
+            padding = payload[0] & 0xff;
+            offset = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        int fragmentLength = payload.length - offset - padding;
+        if (fragmentLength < 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Malformed HEADERS");
+        }
+        byte[] block = new byte[fragmentLength];
+        System.arraycopy(payload, offset, block, 0, fragmentLength);
+        int continuationFlags = flags;
+        while ((continuationFlags & FLAG_END_HEADERS) == 0) {
+            // header block必须由紧跟着的CONTINUATION帧补全
+            int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            continuationFlags = in.readUnsignedByte();
+            int continuationStream = in.readInt() & 0x7fffffff;
+            if (type != CONTINUATION || continuationStream != streamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION for stream " + streamId);
+            }
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            byte[] joined = new byte[block.length + length];
+            System.arraycopy(block, 0, joined, 0, block.length);
+            in.readFully(joined, block.length, length);
+            block = joined;
+        }
+
+        List<Header> headers;
+        try {
+            headers = decoder.decode(block, 0, block.length);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2Stream stream;
+        lock.lock();
+        try {
+            stream = streams.get(streamId);
+        } finally {
+            lock.unlock();
+        }
+        if (stream == null) {
+            // 已取消的stream: 解码只是为了保持HPACK动态表同步
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (!stream.hasResponse()) {
+            HttpResponse response = toResponse(headers, stream, endStream);
+            if (response == null) {
+                // 1xx临时响应
+                return;
+            }
+            stream.headReceived(response);
+        }
+        // 否则是trailers, 忽略
+        if (endStream) {
+            endStream(stream);
+        }
+    }
+
+    private HttpResponse toResponse(List<Header> headers, Http2Stream stream, boolean endStream) throws IOException {
+        int status = -1;
+        for (Header header : headers) {
+            if (":status".equals(header.getName())) {
+                try {
+                    status = Integer.parseInt(header.getValue());
+                } catch (NumberFormatException e) {
+                    status = -1;
+                }
+            }
+        }
+        if (status < 100) {
+            reset(stream, PROTOCOL_ERROR, new IOException("Response without valid :status"));
+            return null;
+        }
+        if (status < 200) {
+            return null;
+        }
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, status,
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null)));
+        for (Header header : headers) {
+            if (!header.getName().startsWith(":")) {
+                response.addHeader(header);
+            }
+        }
+        if (!endStream) {
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(stream.body());
+            entity.setContentLength(contentLength(response));
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    private static long contentLength(HttpResponse response) {
+        Header header = response.getFirstHeader("Content-Length");
+        if (header != null) {
+            try {
+                return Long.parseLong(header.getValue().trim());
+            } catch (NumberFormatException e) {
+                // 按未知长度处理
+            }
+        }
+        return -1;
+    }
+
+    private void endStream(Http2Stream stream) {
+        stream.finish();
+        boolean closeNow = false;
+        lock.lock();
+        try {
+            if (streams.get(stream.id) == stream) {
+                streams.remove(stream.id);
+                closeNow = releaseStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (closeNow) {
+            close(null);
+        }
+    }
+
+    private void readRstStream(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4 || streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Malformed RST_STREAM");
+        }
+        int errorCode = readInt(payload, 0);
+        Http2Stream stream;
+        boolean closeNow = false;
+        lock.lock();
+        try {
+            stream = streams.remove(streamId);
+            if (stream != null) {
+                closeNow = releaseStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (stream != null) {
+            IOException cause = errorCode == REFUSED_STREAM
+                    ? new RefusedStreamException("Stream refused by server")
+                    : new IOException("Stream reset by server, error " + errorCode);
+            consumed(null, stream.fail(cause));
+        }
+        if (closeNow) {
+            close(null);
+        }
+    }
+
+    private void readSettings(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS length " + payload.length);
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < payload.length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                long value = readInt(payload, i + 2) & 0xffffffffL;
+                switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxConcurrentStreams = (int) Math.min(Integer.MAX_VALUE, value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > Integer.MAX_VALUE) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window " + value);
+                    }
+                    // 新的初始窗口对所有已打开的stream生效
+                    int delta = (int) value - peerInitialWindow;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    peerInitialWindow = (int) value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Max frame size " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                case SETTINGS_HEADER_TABLE_SIZE:
+                case SETTINGS_ENABLE_PUSH:
+                default:
+                    // 编码器不用动态表, 不受HEADER_TABLE_SIZE影响
+                    break;
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        sendControl(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void readGoAway(byte[] payload) throws IOException {
+        if (payload.length < 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY length " + payload.length);
+        }
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+        List<Http2Stream> refused = new ArrayList<Http2Stream>();
+        boolean closeNow;
+        lock.lock();
+        try {
+            goingAway = true;
+            Iterator<Http2Stream> it = streams.values().iterator();
+            while (it.hasNext()) {
+                Http2Stream stream = it.next();
+                if (stream.id > lastStreamId) {
+                    it.remove();
+                    refused.add(stream);
+                    activeStreams = Math.max(0, activeStreams - 1);
+                }
+            }
+            changed.signalAll();
+            closeNow = activeStreams == 0;
+        } finally {
+            lock.unlock();
+        }
+        transport.remove(this);
+        // 服务器没有处理过的stream可以放心重试
+        for (Http2Stream stream : refused) {
+            stream.fail(new RefusedStreamException("Stream refused by GOAWAY"));
+        }
+        if (closeNow) {
+            close(null);
+        }
+    }
+
+    private void readWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE length " + payload.length);
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE with zero increment");
+        }
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflow");
+                    }
+                    stream.sendWindow += increment;
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the socket and fails all open streams. <code>cause</code> is null for an orderly
+     * shutdown, which says goodbye with GOAWAY first.
+     */
+    void close(IOException cause) {
+        List<Http2Stream> open;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            goingAway = true;
+            closeCause = cause;
+            open = new ArrayList<Http2Stream>(streams.values());
+            streams.clear();
+            activeStreams = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        transport.remove(this);
+        if (cause == null || cause instanceof ConnectionError) {
+            int errorCode = cause == null ? NO_ERROR : ((ConnectionError) cause).errorCode;
+            // 读线程可能正好碰上阻塞在写上的请求线程, 不要无限等writeLock
+            try {
+                if (writeLock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                    try {
+                        writeFrameHeader(8, GOAWAY, 0, 0);
+                        writeInt(0);
+                        writeInt(errorCode);
+                        out.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // 反正要关了
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        IOException failure = cause != null ? cause : new IOException("Connection closed");
+        for (Http2Stream stream : open) {
+            stream.fail(failure);
+        }
+    }
+
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrameSize;
+        lock.lock();
+        try {
+            maxFrameSize = peerMaxFrameSize;
+        } finally {
+            lock.unlock();
+        }
+        int length = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        writeFrameHeader(length, HEADERS, flags, streamId);
+        out.write(block, 0, length);
+        int offset = length;
+        while (offset < block.length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            writeFrameHeader(length, CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId);
+            out.write(block, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Queues a frame and writes it right away unless another thread holds <code>writeLock</code>;
+     * that thread writes it after its own frames. Never waits for the lock, so the reader can use it.
+     */
+    private void sendControl(int type, int flags, int streamId, byte[] payload) {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, frame, 5, 4);
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        control.add(frame);
+        flushControl();
+    }
+
+    /**
+     * Writes the queued control frames if <code>writeLock</code> is free. Request threads call
+     * this after releasing <code>writeLock</code>, so nothing queued meanwhile is left behind.
+     */
+    private void flushControl() {
+        // 放锁后再看一次队列: 别的线程可能在我们持锁时入队, 而它的tryLock失败了
+        while (!control.isEmpty() && writeLock.tryLock()) {
+            try {
+                byte[] frame;
+                while ((frame = control.poll()) != null) {
+                    out.write(frame);
+                }
+                out.flush();
+            } catch (IOException e) {
+                control.clear();
+                close(e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(streamId);
+    }
+
+    private void writeSetting(int id, int value) throws IOException {
+        out.write(id >>> 8);
+        out.write(id);
+        writeInt(value);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * The server did not process the stream (REFUSED_STREAM or beyond the GOAWAY last stream
+     * id), so the request can be retried on another connection whatever its method.
+     */
+    static final class RefusedStreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
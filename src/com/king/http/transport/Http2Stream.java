@@ -0,0 +1,272 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * One request/response on an {@link Http2Connection}. The connection's reader thread delivers
+ * the head and DATA frames, the request thread waits for the head and then reads the body.
+ * Bytes are only credited back to the server's flow-control windows once they have been read,
+ * so a slow consumer holds back the server just like {@link NioBodyStream} does for HTTP/1.1.
+ */
+final class Http2Stream {
+
+    final Http2Connection connection;
+    final int readTimeout;
+    int id;
+
+    // 以下三个由connection的锁保护
+    int sendWindow;
+    int receiveWindow;
+    int unackedBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private final Body body = new Body();
+    private int headOffset;
+    private int buffered;
+    private HttpResponse response;
+    private boolean finished;
+    private boolean closed;
+    // 连接等待空闲stream时不拿本stream的锁读取
+    private volatile IOException failure;
+
+    Http2Stream(Http2Connection connection, int readTimeout) {
+        this.connection = connection;
+        this.readTimeout = readTimeout;
+    }
+
+    InputStream body() {
+        return body;
+    }
+
+    void headReceived(HttpResponse head) {
+        lock.lock();
+        try {
+            response = head;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called on the reader thread.
+     *
+     * @return false if the body was already closed and the bytes should be credited right away
+     */
+    boolean push(byte[] data) {
+        lock.lock();
+        try {
+            if (closed || failure != null) {
+                return false;
+            }
+            chunks.add(data);
+            buffered += data.length;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of buffered bytes dropped, to be credited to the connection window
+     */
+    int fail(IOException e) {
+        lock.lock();
+        try {
+            if (finished && response != null) {
+                // 正文已经完整收到, 剩下的数据照常读完
+                return 0;
+            }
+            if (failure == null) {
+                failure = e;
+            }
+            int dropped = buffered;
+            chunks.clear();
+            buffered = 0;
+            changed.signalAll();
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return why the stream failed or was aborted, null if it has not
+     */
+    IOException failure() {
+        return failure;
+    }
+
+    boolean isFinished() {
+        lock.lock();
+        try {
+            return finished;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean hasResponse() {
+        lock.lock();
+        try {
+            return response != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeoutMillis 0 waits forever
+     */
+    HttpResponse awaitHead(long timeoutMillis, boolean connected) throws IOException {
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (response == null && failure == null) {
+                try {
+                    if (timeoutMillis <= 0) {
+                        changed.await();
+                    } else {
+                        if (waitNanos <= 0) {
+                            if (!connected) {
+                                throw new ConnectTimeoutException("Connect timed out");
+                            }
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        waitNanos = changed.awaitNanos(waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (response == null) {
+                throw failure;
+            }
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Body extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int copied = 0;
+            lock.lock();
+            try {
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+                while (chunks.isEmpty()) {
+                    if (closed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (finished) {
+                        return -1;
+                    }
+                    try {
+                        if (readTimeout <= 0) {
+                            changed.await();
+                        } else {
+                            if (waitNanos <= 0) {
+                                throw new SocketTimeoutException("Read timed out");
+                            }
+                            waitNanos = changed.awaitNanos(waitNanos);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                while (copied < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.getFirst();
+                    int n = Math.min(len - copied, chunk.length - headOffset);
+                    System.arraycopy(chunk, headOffset, b, off + copied, n);
+                    copied += n;
+                    headOffset += n;
+                    if (headOffset == chunk.length) {
+                        chunks.removeFirst();
+                        headOffset = 0;
+                    }
+                }
+                buffered -= copied;
+            } finally {
+                lock.unlock();
+            }
+            connection.consumed(Http2Stream.this, copied);
+            return copied;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return buffered;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closing before END_STREAM resets the stream; the connection itself stays up.
+         */
+        @Override
+        public void close() {
+            boolean reset;
+            int dropped;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                reset = !finished && failure == null;
+                dropped = buffered;
+                chunks.clear();
+                buffered = 0;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            connection.consumed(Http2Stream.this, dropped);
+            if (reset) {
+                connection.reset(Http2Stream.this, Http2Connection.CANCEL,
+                        new IOException("Response stream closed before completion"));
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.king.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.king.http.DnsResolver;
+import com.king.http.HttpTransport;
+
+/**
+ * HTTP/2 engine: all requests to a host share one connection, each as its own stream, so dozens
+ * of concurrent calls no longer need dozens of sockets. Headers are HPACK compressed and every
+ * response body is flow controlled, see {@link Http2Connection}.
+ *
+ * https hosts are asked for <code>h2</code> via ALPN. ALPN is looked up reflectively
+ * (<code>SSLParameters.setApplicationProtocols</code>, Android 10 / Java 9); where it is missing,
+ * or the server picks http/1.1, the host is remembered and its requests go to the fallback
+ * transport. Plain http uses h2c with prior knowledge only when enabled with
+ * {@link #setCleartextPriorKnowledge(boolean)}, which is meant for local test servers.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.enableHttp2Transport(false);
+ *
+ * To try it against a local h2c server, e.g. <code>nghttpd -v --no-tls 8080</code> (nghttp2)
+ * whose log shows every frame both ways:
+ *
+ * Http2Transport http2 = client.enableHttp2Transport(true);
+ * client.get("http://10.0.2.2:8080/", handler);
+ *
+ * Concurrent requests to the host should leave {@link #getConnectionCount()} at 1.
+ */
+public class Http2Transport implements HttpTransport {
+
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+
+    private static final Method SET_APPLICATION_PROTOCOLS;
+    private static final Method GET_APPLICATION_PROTOCOL;
+
+    static {
+        Method set = null;
+        Method get = null;
+        try {
+            set = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            get = SSLSocket.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException e) {
+            // 老系统没有ALPN API, https全部走fallback
+            set = null;
+            get = null;
+        }
+        SET_APPLICATION_PROTOCOLS = set;
+        GET_APPLICATION_PROTOCOL = get;
+    }
+
+    private final ConcurrentHashMap<String, Http2Connection> connections = new ConcurrentHashMap<String, Http2Connection>();
+    private final ConcurrentHashMap<String, ReentrantLock> connectLocks = new ConcurrentHashMap<String, ReentrantLock>();
+    // ALPN没有协商出h2的host, 以后直接走fallback, 不再白做一次TLS握手
+    private final ConcurrentHashMap<String, Boolean> http1Routes = new ConcurrentHashMap<String, Boolean>();
+    private final BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
+    private final HttpParams params;
+    private final HttpTransport fallback;
+    private volatile boolean cleartextPriorKnowledge;
+    private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private volatile DnsResolver dnsResolver = DnsResolver.SYSTEM;
+    private volatile SSLSocketFactory sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+    private volatile X509HostnameVerifier hostnameVerifier =
+            org.apache.http.conn.ssl.SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+    /**
+     * @param params client level parameters: socket/connect timeouts and user agent
+     * @param fallback handles requests HTTP/2 cannot serve, may be null; not shut down with this transport
+     */
+    public Http2Transport(HttpParams params, HttpTransport fallback) {
+        this.params = params;
+        this.fallback = fallback;
+    }
+
+    public void addRequestInterceptor(HttpRequestInterceptor interceptor) {
+        httpProcessor.addRequestInterceptor(interceptor);
+    }
+
+    public void addResponseInterceptor(HttpResponseInterceptor interceptor) {
+        httpProcessor.addResponseInterceptor(interceptor);
+    }
+
+    /**
+     * Speaks HTTP/2 right away on plain http connections instead of handing them to the fallback.
+     * Only for servers known to support h2c, there is no Upgrade negotiation.
+     */
+    public void setCleartextPriorKnowledge(boolean cleartextPriorKnowledge) {
+        this.cleartextPriorKnowledge = cleartextPriorKnowledge;
+    }
+
+    /**
+     * How long a connection without open streams is kept before it is closed.
+     */
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Resolves hosts before new connections are opened.
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("DNS resolver may not be null");
+        }
+        this.dnsResolver = dnsResolver;
+    }
+
+    public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    public void setHostnameVerifier(X509HostnameVerifier hostnameVerifier) {
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * @return number of hosts that currently have an HTTP/2 connection
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        URI uri = request.getURI();
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.US);
+        boolean secure = "https".equals(scheme);
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        HttpHost target = new HttpHost(uri.getHost(), port, scheme);
+        String route = scheme + "://" + target.toHostString();
+        boolean supported = secure ? SET_APPLICATION_PROTOCOLS != null && !http1Routes.containsKey(route)
+                : "http".equals(scheme) && cleartextPriorKnowledge;
+        if (!supported) {
+            if (fallback == null) {
+                throw new ClientProtocolException("HTTP/2 not available for " + route);
+            }
+            return fallback.execute(request, context);
+        }
+        if (request.isAborted()) {
+            throw new IOException("Request aborted");
+        }
+        HttpParams requestParams = new DefaultedHttpParams(request.getParams(), params);
+        int soTimeout = HttpConnectionParams.getSoTimeout(requestParams);
+
+        // 连接失败时RetryHandler也要看这些属性
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+        Http2Connection connection;
+        try {
+            connection = connection(route, target, secure, requestParams);
+        } catch (AlpnUnavailableException e) {
+            http1Routes.put(route, Boolean.TRUE);
+            if (fallback == null) {
+                throw e;
+            }
+            return fallback.execute(request, context);
+        }
+
+        try {
+            httpProcessor.process(request, context);
+        } catch (HttpException e) {
+            throw new ClientProtocolException(e);
+        }
+        List<Header> headers = encodeHeaders(request, target, secure, HttpProtocolParams.getUserAgent(requestParams));
+        byte[] body = encodeBody(request);
+        if (body != null) {
+            headers.add(new BasicHeader("content-length", String.valueOf(body.length)));
+        }
+
+        boolean retried = false;
+        while (true) {
+            Http2Stream stream = new Http2Stream(connection, soTimeout);
+            boolean sent = false;
+            try {
+                // 先登记abort: 等待空闲stream时也能被abort唤醒
+                setReleaseTrigger(request, stream);
+                connection.newStream(stream, headers, body);
+                sent = true;
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+                HttpResponse response = stream.awaitHead(soTimeout, true);
+                context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+                try {
+                    httpProcessor.process(response, context);
+                } catch (HttpException e) {
+                    throw new ClientProtocolException(e);
+                }
+                return response;
+            } catch (IOException e) {
+                connection.reset(stream, Http2Connection.CANCEL, e);
+                // 服务器明确没处理过的stream(REFUSED_STREAM/GOAWAY), 换个连接重试一次
+                if (e instanceof Http2Connection.RefusedStreamException && !retried && !request.isAborted()) {
+                    retried = true;
+                    context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+                    connection = connection(route, target, secure, requestParams);
+                    continue;
+                }
+                if (!sent) {
+                    context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private Http2Connection connection(String route, HttpHost target, boolean secure, HttpParams requestParams)
+            throws IOException {
+        Http2Connection connection = connections.get(route);
+        if (connection != null && connection.isUsable()) {
+            return connection;
+        }
+        ReentrantLock connectLock = connectLocks.get(route);
+        if (connectLock == null) {
+            ReentrantLock created = new ReentrantLock();
+            connectLock = connectLocks.putIfAbsent(route, created);
+            if (connectLock == null) {
+                connectLock = created;
+            }
+        }
+        // 同一个host只建一条连接, 并发的请求等它建好后复用
+        connectLock.lock();
+        try {
+            connection = connections.get(route);
+            if (connection != null && connection.isUsable()) {
+                return connection;
+            }
+            Socket socket = connect(target, secure, HttpConnectionParams.getConnectionTimeout(requestParams));
+            connection = new Http2Connection(this, route, socket, keepAliveMillis);
+            connections.put(route, connection);
+            connection.start();
+            return connection;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private Socket connect(HttpHost target, boolean secure, int connectTimeout) throws IOException {
+        InetAddress[] addresses = dnsResolver.resolve(target.getHostName());
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(connectTimeout);
+            socket.connect(new InetSocketAddress(addresses[0], target.getPort()), connectTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        if (!secure) {
+            return socket;
+        }
+        SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(socket, target.getHostName(), target.getPort(), true);
+        try {
+            SSLParameters sslParameters = ssl.getSSLParameters();
+            SET_APPLICATION_PROTOCOLS.invoke(sslParameters, new Object[] { new String[] { "h2", "http/1.1" } });
+            ssl.setSSLParameters(sslParameters);
+            ssl.startHandshake();
+            hostnameVerifier.verify(target.getHostName(), ssl);
+            Object protocol = GET_APPLICATION_PROTOCOL.invoke(ssl);
+            if (!"h2".equals(protocol)) {
+                ssl.close();
+                throw new AlpnUnavailableException(target.toHostString() + " did not negotiate h2");
+            }
+            return ssl;
+        } catch (IOException e) {
+            ssl.close();
+            throw e;
+        } catch (Exception e) {
+            // 反射调用失败, 当作不支持ALPN
+            ssl.close();
+            throw new AlpnUnavailableException(e.toString());
+        }
+    }
+
+    private static List<Header> encodeHeaders(HttpUriRequest request, HttpHost target, boolean secure, String userAgent) {
+        URI uri = request.getURI();
+        String path = uri.getRawPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+        String authority = uri.getPort() != -1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+        Header host = request.getFirstHeader("Host");
+        if (host != null) {
+            authority = host.getValue();
+        }
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(":method", request.getMethod()));
+        headers.add(new BasicHeader(":scheme", secure ? "https" : "http"));
+        headers.add(new BasicHeader(":authority", authority));
+        headers.add(new BasicHeader(":path", path));
+        if (userAgent != null && !request.containsHeader("User-Agent")) {
+            headers.add(new BasicHeader("user-agent", userAgent));
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                if (entity.getContentType() != null && !request.containsHeader("Content-Type")) {
+                    headers.add(new BasicHeader("content-type", entity.getContentType().getValue()));
+                }
+                if (entity.getContentEncoding() != null && !request.containsHeader("Content-Encoding")) {
+                    headers.add(new BasicHeader("content-encoding", entity.getContentEncoding().getValue()));
+                }
+            }
+        }
+        for (Header header : request.getAllHeaders()) {
+            String name = header.getName().toLowerCase(Locale.US);
+            // HTTP/2禁止逐跳头, Host由:authority代替
+            if (name.equals("host") || name.equals("connection") || name.equals("keep-alive")
+                    || name.equals("proxy-connection") || name.equals("transfer-encoding")
+                    || name.equals("upgrade") || name.equals("content-length")) {
+                continue;
+            }
+            if (name.equals("te") && !"trailers".equalsIgnoreCase(header.getValue())) {
+                continue;
+            }
+            headers.add(new BasicHeader(name, header.getValue()));
+        }
+        return headers;
+    }
+
+    /**
+     * Buffers the request entity like {@link Http1RequestWriter} does.
+     *
+     * @return null for requests without entity
+     */
+    private static byte[] encodeBody(HttpUriRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return null;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                entity.getContentLength() > 0 ? (int) entity.getContentLength() : 256);
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private void setReleaseTrigger(HttpUriRequest request, final Http2Stream stream) throws IOException {
+        if (!(request instanceof AbortableHttpRequest)) {
+            return;
+        }
+        ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+            @Override
+            public void releaseConnection() {
+            }
+
+            @Override
+            public void abortConnection() {
+                stream.connection.reset(stream, Http2Connection.CANCEL, new IOException("Request aborted"));
+            }
+        });
+    }
+
+    void remove(Http2Connection connection) {
+        connections.remove(connection.route, connection);
+    }
+
+    @Override
+    public void shutdown() {
+        // fallback不是这里创建的, 不负责关闭
+        for (Http2Connection connection : connections.values()) {
+            connection.close(null);
+        }
+        connections.clear();
+    }
+
+    private static final class AlpnUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        AlpnUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
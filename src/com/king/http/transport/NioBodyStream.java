@@ -0,0 +1,185 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The entity stream of a response arriving on an event loop. The loop pushes chunks in, the
+ * request thread reads them out. Once more than {@link #HIGH_WATER_MARK} bytes are waiting, the
+ * connection stops reading from the socket until the reader has drained below
+ * {@link #LOW_WATER_MARK}, so a slow consumer holds back the server rather than filling the heap.
+ */
+final class NioBodyStream extends InputStream {
+
+    static final int HIGH_WATER_MARK = 64 * 1024;
+    static final int LOW_WATER_MARK = 16 * 1024;
+
+    private final NioConnection connection;
+    private final int readTimeout;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private int headOffset;
+    private int buffered;
+    private boolean finished;
+    private boolean closed;
+    private boolean readPaused;
+    private IOException failure;
+
+    NioBodyStream(NioConnection connection, int readTimeout) {
+        this.connection = connection;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Called on the event loop.
+     *
+     * @return true if the connection should stop reading until {@link NioConnection#resumeReading}
+     */
+    boolean push(byte[] data, int offset, int length) {
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            chunks.add(chunk);
+            buffered += length;
+            readable.signalAll();
+            if (buffered > HIGH_WATER_MARK) {
+                readPaused = true;
+            }
+            return readPaused;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            if (!finished) {
+                failure = e;
+                readable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        boolean resume = false;
+        int copied = 0;
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+            while (chunks.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (finished) {
+                    return -1;
+                }
+                try {
+                    if (readTimeout <= 0) {
+                        readable.await();
+                    } else {
+                        if (waitNanos <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        waitNanos = readable.awaitNanos(waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            while (copied < len && !chunks.isEmpty()) {
+                byte[] chunk = chunks.getFirst();
+                int n = Math.min(len - copied, chunk.length - headOffset);
+                System.arraycopy(chunk, headOffset, b, off + copied, n);
+                copied += n;
+                headOffset += n;
+                if (headOffset == chunk.length) {
+                    chunks.removeFirst();
+                    headOffset = 0;
+                }
+            }
+            buffered -= copied;
+            if (readPaused && buffered < LOW_WATER_MARK) {
+                readPaused = false;
+                resume = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (resume) {
+            connection.resumeReading(this);
+        }
+        return copied;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return buffered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closing before the body has fully arrived aborts the connection rather than draining it.
+     */
+    @Override
+    public void close() {
+        boolean abort;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            abort = !finished && failure == null;
+            chunks.clear();
+            buffered = 0;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (abort) {
+            connection.abort(this, new IOException("Response stream closed before completion"));
+        }
+    }
+}
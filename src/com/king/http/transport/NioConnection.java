@@ -0,0 +1,364 @@
+package com.king.http.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * A keep-alive HTTP/1.1 connection driven by an {@link EventLoop}. Carries one
+ * {@link Exchange} at a time; between exchanges it sits in the transport's idle pool, still
+ * registered for reads so a server-side close is noticed right away instead of on reuse.
+ *
+ * The body of an asynchronous exchange is collected here and handed over complete, the way
+ * the blocking path's caller would have read it anyway. Nobody waits on such an exchange, so
+ * its connect and read timeouts are enforced by the loop's once-a-second expiry check.
+ *
+ * All methods except {@link #start}, {@link #abort} and {@link #resumeReading} run on the loop.
+ */
+final class NioConnection implements Http1ResponseParser.Listener {
+
+    final String route;
+    private final NioHttpTransport transport;
+    private final EventLoop loop;
+    private final InetSocketAddress address;
+    private final Http1ResponseParser parser = new Http1ResponseParser(this);
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Exchange exchange;
+    private NioBodyStream body;
+    // 异步exchange的响应, body读完后一起交出去
+    private HttpResponse asyncHead;
+    private ByteArrayOutputStream asyncBody;
+    // 异步exchange的超时时刻, 0表示不限
+    private long timeoutAt;
+    private ByteBuffer pendingWrite;
+    private boolean readPaused;
+    private volatile boolean closed;
+    private long idleSince;
+    private long keepAliveMillis;
+
+    NioConnection(NioHttpTransport transport, EventLoop loop, String route, InetSocketAddress address) {
+        this.transport = transport;
+        this.loop = loop;
+        this.route = route;
+        this.address = address;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    void start(final Exchange next) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                doStart(next);
+            }
+        });
+    }
+
+    /**
+     * Closes the connection if it is still serving the given exchange.
+     */
+    void abort(final Exchange target, final IOException cause) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (exchange == target) {
+                    close(cause);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection if it is still delivering the given body.
+     */
+    void abort(final NioBodyStream target, final IOException cause) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (body == target) {
+                    close(cause);
+                }
+            }
+        });
+    }
+
+    void resumeReading(final NioBodyStream target) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (body == target && readPaused && !closed) {
+                    readPaused = false;
+                    updateInterest();
+                }
+            }
+        });
+    }
+
+    private void doStart(Exchange next) {
+        if (closed) {
+            next.fail(new NoHttpResponseException("Connection closed before the request was sent"));
+            return;
+        }
+        exchange = next;
+        body = null;
+        asyncHead = null;
+        asyncBody = null;
+        readPaused = false;
+        // 连接超时和读超时合在一起算, 连上后重新计时
+        timeoutAt = next.isAsync() && next.readTimeout > 0
+                ? System.currentTimeMillis() + next.readTimeout + (channel == null ? next.connectTimeout : 0) : 0;
+        parser.reset(next.headRequest);
+        pendingWrite = next.requestBytes;
+        try {
+            if (channel == null) {
+                connect();
+            } else {
+                next.connected();
+                updateInterest();
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            // 例如UnresolvedAddressException: 不能让它终止事件循环, 也不能漏掉已经打开的channel
+            close(wrap(e));
+        }
+    }
+
+    static IOException wrap(RuntimeException e) {
+        IOException failure = new IOException(e.toString());
+        failure.initCause(e);
+        return failure;
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (channel.connect(address)) {
+            key = channel.register(loop.selector(), 0, this);
+            exchange.connected();
+            updateInterest();
+        } else {
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    void onConnectable() {
+        try {
+            if (channel.finishConnect()) {
+                touch();
+                exchange.connected();
+                updateInterest();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    void onWritable() {
+        try {
+            channel.write(pendingWrite);
+            if (!pendingWrite.hasRemaining()) {
+                pendingWrite = null;
+                exchange.requestSent();
+            }
+            updateInterest();
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    void onReadable(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read == -1) {
+                if (exchange != null) {
+                    parser.endOfInput();
+                }
+                close(null);
+                return;
+            }
+            buffer.flip();
+            touch();
+            if (exchange == null) {
+                // 空闲连接上收到数据, 协议状态已经不可信
+                close(null);
+                return;
+            }
+            parser.feed(buffer);
+            if (buffer.hasRemaining() && exchange == null) {
+                close(null);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void touch() {
+        if (timeoutAt != 0 && exchange != null) {
+            timeoutAt = System.currentTimeMillis() + exchange.readTimeout;
+        }
+    }
+
+    private void updateInterest() {
+        if (closed || key == null || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (pendingWrite != null) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!readPaused) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    @Override
+    public void onResponseHead(HttpResponse head, boolean hasBody, long contentLength) {
+        keepAliveMillis = keepAliveTimeout(head);
+        if (exchange.isAsync()) {
+            asyncHead = head;
+            if (hasBody) {
+                asyncBody = new ByteArrayOutputStream(contentLength > 0 && contentLength <= 1024 * 1024
+                        ? (int) contentLength : 8192);
+            }
+            return;
+        }
+        if (hasBody) {
+            body = new NioBodyStream(this, exchange.readTimeout);
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(body);
+            entity.setContentLength(contentLength);
+            entity.setContentType(head.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(head.getFirstHeader("Content-Encoding"));
+            head.setEntity(entity);
+        }
+        exchange.headReceived(head);
+    }
+
+    @Override
+    public void onBody(byte[] data, int offset, int length) {
+        if (asyncBody != null) {
+            asyncBody.write(data, offset, length);
+            return;
+        }
+        if (body.push(data, offset, length) && !readPaused) {
+            readPaused = true;
+            updateInterest();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        if (body != null) {
+            body.finish();
+        }
+        Exchange done = exchange;
+        HttpResponse head = asyncHead;
+        if (head != null && asyncBody != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(asyncBody.toByteArray());
+            entity.setContentType(head.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(head.getFirstHeader("Content-Encoding"));
+            head.setEntity(entity);
+        }
+        exchange = null;
+        body = null;
+        asyncHead = null;
+        asyncBody = null;
+        timeoutAt = 0;
+        readPaused = false;
+        if (parser.isKeepAlive() && !closed) {
+            idleSince = System.currentTimeMillis();
+            updateInterest();
+            transport.release(this);
+        } else {
+            close(null);
+        }
+        if (head != null) {
+            // 连接已经归还, 回调里马上发出的下一个请求可以复用它
+            done.headReceived(head);
+        }
+    }
+
+    /**
+     * Honors the server's <code>Keep-Alive: timeout=n</code>, capped by the transport's own limit.
+     */
+    private long keepAliveTimeout(HttpResponse head) {
+        long timeout = transport.getKeepAliveMillis();
+        Header keepAlive = head.getFirstHeader("Keep-Alive");
+        if (keepAlive == null) {
+            return timeout;
+        }
+        for (HeaderElement element : keepAlive.getElements()) {
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                try {
+                    return Math.min(timeout, Long.parseLong(element.getValue().trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    return timeout;
+                }
+            }
+        }
+        return timeout;
+    }
+
+    void closeIfExpired(long now) {
+        if (exchange != null && timeoutAt != 0 && now - timeoutAt >= 0) {
+            close(exchange.isConnected() ? new SocketTimeoutException("Read timed out")
+                    : new ConnectTimeoutException("Connect timed out"));
+            return;
+        }
+        if (exchange == null && !closed && idleSince > 0 && now - idleSince >= keepAliveMillis) {
+            close(null);
+        }
+    }
+
+    void close(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        transport.remove(this);
+        if (exchange != null) {
+            IOException failure = cause != null ? cause
+                    : new ConnectionClosedException("Connection closed by peer");
+            if (body != null) {
+                body.fail(failure);
+            }
+            exchange.fail(failure);
+            exchange = null;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.king.http.AsyncHttpTransport;
+import com.king.http.DnsResolver;
+import com.king.http.HttpTransport;
+
+/**
+ * Non-blocking HTTP/1.1 engine: a handful of selector threads multiplex every socket, and
+ * keep-alive connections wait in a per-host idle pool without holding a thread.
+ *
+ * Requests sent through {@link #executeAsync} hold no thread while in flight: the event loop
+ * collects the response and hands it to the callback, so a few loops carry as many concurrent
+ * requests as there are sockets. {@link com.king.http.AsyncHttpRequest} sends every request
+ * that is not streamed this way. {@link #execute} keeps the blocking contract for streamed
+ * bodies: the calling thread parks until the head arrives and then reads the body from a
+ * buffer the loop fills, see {@link NioBodyStream}.
+ *
+ * Only plain <code>http</code> is handled here; other schemes go to the secure transport passed
+ * in, typically {@link com.king.http.DefaultHttpTransport}.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.enableNioTransport(2);
+ */
+public class NioHttpTransport implements AsyncHttpTransport {
+
+    public static final int DEFAULT_MAX_IDLE_PER_ROUTE = 32;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<NioConnection>> idleConnections =
+            new ConcurrentHashMap<String, ConcurrentLinkedQueue<NioConnection>>();
+    private final BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
+    private final HttpParams params;
+    private final HttpTransport secureTransport;
+    private volatile int maxIdlePerRoute = DEFAULT_MAX_IDLE_PER_ROUTE;
+    private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private volatile DnsResolver dnsResolver = DnsResolver.SYSTEM;
+
+    /**
+     * @param ioThreads number of event loops
+     * @param params client level parameters: socket/connect timeouts and user agent
+     * @param secureTransport handles https requests, may be null; not shut down with this transport
+     */
+    public NioHttpTransport(int ioThreads, HttpParams params, HttpTransport secureTransport) throws IOException {
+        this.params = params;
+        this.secureTransport = secureTransport;
+        loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("king-nio-" + (i + 1));
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public void addRequestInterceptor(HttpRequestInterceptor interceptor) {
+        httpProcessor.addRequestInterceptor(interceptor);
+    }
+
+    public void addResponseInterceptor(HttpResponseInterceptor interceptor) {
+        httpProcessor.addResponseInterceptor(interceptor);
+    }
+
+    public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+        this.maxIdlePerRoute = maxIdlePerRoute;
+    }
+
+    /**
+     * Upper bound for how long an idle connection is kept; a shorter
+     * <code>Keep-Alive: timeout</code> from the server wins.
+     */
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Resolves hosts before new connections are opened; lookups block the calling thread, not
+     * an event loop.
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("DNS resolver may not be null");
+        }
+        this.dnsResolver = dnsResolver;
+    }
+
+    long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        URI uri = request.getURI();
+        if (!"http".equalsIgnoreCase(uri.getScheme())) {
+            if (secureTransport == null) {
+                throw new ClientProtocolException("Unsupported scheme: " + uri.getScheme());
+            }
+            return secureTransport.execute(request, context);
+        }
+        Prepared prepared = prepare(request, context);
+        boolean retried = false;
+        while (true) {
+            NioConnection connection = pollIdle(prepared.route);
+            boolean reused = connection != null;
+            if (connection == null) {
+                connection = new NioConnection(this, nextLoop(), prepared.route, resolve(prepared.target));
+            }
+            Exchange exchange = new Exchange(prepared.requestBytes.duplicate(), prepared.headRequest, prepared.soTimeout);
+            setReleaseTrigger(request, connection, exchange);
+            connection.start(exchange);
+            try {
+                long timeout = prepared.soTimeout <= 0 ? 0 : prepared.soTimeout + (reused ? 0 : prepared.connectTimeout);
+                HttpResponse response;
+                try {
+                    response = exchange.awaitHead(timeout);
+                } catch (IOException e) {
+                    connection.abort(exchange, e);
+                    throw e;
+                }
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+                context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+                try {
+                    httpProcessor.process(response, context);
+                } catch (HttpException e) {
+                    throw new ClientProtocolException(e);
+                }
+                return response;
+            } catch (IOException e) {
+                boolean sent = exchange.isSent();
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.valueOf(sent));
+                // keep-alive连接可能已经被服务器关掉, 换一个新连接重试一次
+                if (reused && !retried && !request.isAborted() && (!sent || isIdempotent(request))) {
+                    retried = true;
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Plain http is completed on the event loops without any thread waiting. The calling thread
+     * only resolves the host of a new connection, which the client's DNS cache usually answers.
+     * Other schemes still block the calling thread in the secure transport, unless it is
+     * asynchronous itself.
+     */
+    @Override
+    public void executeAsync(HttpUriRequest request, HttpContext context, Callback callback) {
+        URI uri = request.getURI();
+        if (!"http".equalsIgnoreCase(uri.getScheme())) {
+            if (secureTransport instanceof AsyncHttpTransport) {
+                ((AsyncHttpTransport) secureTransport).executeAsync(request, context, callback);
+            } else {
+                executeBuffered(request, context, callback);
+            }
+            return;
+        }
+        Prepared prepared;
+        try {
+            prepared = prepare(request, context);
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        sendAsync(request, context, prepared, null, false, callback);
+    }
+
+    private void executeBuffered(HttpUriRequest request, HttpContext context, Callback callback) {
+        HttpResponse response;
+        try {
+            if (secureTransport == null) {
+                throw new ClientProtocolException("Unsupported scheme: " + request.getURI().getScheme());
+            }
+            response = secureTransport.execute(request, context);
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                // 读完body, 连接回到连接池
+                ByteArrayEntity buffered = new ByteArrayEntity(EntityUtils.toByteArray(entity));
+                buffered.setContentType(entity.getContentType());
+                buffered.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(buffered);
+            }
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.completed(response);
+    }
+
+    /**
+     * @param address where to connect if no idle connection is free, null to resolve the host
+     */
+    private void sendAsync(final HttpUriRequest request, final HttpContext context, final Prepared prepared,
+            InetSocketAddress address, final boolean retried, final Callback callback) {
+        NioConnection connection = pollIdle(prepared.route);
+        final boolean reused = connection != null;
+        if (connection == null) {
+            try {
+                connection = new NioConnection(this, nextLoop(), prepared.route,
+                        address != null ? address : resolve(prepared.target));
+            } catch (IOException e) {
+                callback.failed(e);
+                return;
+            }
+        }
+        final NioConnection used = connection;
+        final Exchange[] exchange = new Exchange[1];
+        exchange[0] = new Exchange(prepared.requestBytes.duplicate(), prepared.headRequest, prepared.soTimeout,
+                prepared.connectTimeout, new Callback() {
+            @Override
+            public void completed(HttpResponse response) {
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+                context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+                try {
+                    httpProcessor.process(response, context);
+                } catch (HttpException e) {
+                    callback.failed(new ClientProtocolException(e));
+                    return;
+                } catch (IOException e) {
+                    callback.failed(e);
+                    return;
+                }
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(IOException e) {
+                boolean sent = exchange[0].isSent();
+                context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.valueOf(sent));
+                // 同execute: 失效的keep-alive连接换一个重试一次, 地址沿用, 事件循环上不做DNS查询
+                if (reused && !retried && !request.isAborted() && (!sent || isIdempotent(request))) {
+                    sendAsync(request, context, prepared, used.address(), true, callback);
+                    return;
+                }
+                callback.failed(e);
+            }
+        });
+        try {
+            setReleaseTrigger(request, connection, exchange[0]);
+        } catch (IOException e) {
+            if (reused) {
+                release(connection);
+            }
+            callback.failed(e);
+            return;
+        }
+        connection.start(exchange[0]);
+    }
+
+    private Prepared prepare(HttpUriRequest request, HttpContext context) throws IOException {
+        if (request.isAborted()) {
+            throw new IOException("Request aborted");
+        }
+        URI uri = request.getURI();
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+        HttpHost target = new HttpHost(uri.getHost(), port, "http");
+        HttpParams requestParams = new DefaultedHttpParams(request.getParams(), params);
+
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+        try {
+            httpProcessor.process(request, context);
+        } catch (HttpException e) {
+            throw new ClientProtocolException(e);
+        }
+        return new Prepared(target,
+                Http1RequestWriter.encode(request, HttpProtocolParams.getUserAgent(requestParams)),
+                "HEAD".equalsIgnoreCase(request.getMethod()),
+                HttpConnectionParams.getSoTimeout(requestParams),
+                HttpConnectionParams.getConnectionTimeout(requestParams));
+    }
+
+    private InetSocketAddress resolve(HttpHost target) throws IOException {
+        // 在调用线程上解析: 未解析的地址会让connect()抛出unchecked异常
+        InetAddress[] addresses = dnsResolver.resolve(target.getHostName());
+        return new InetSocketAddress(addresses[0], target.getPort());
+    }
+
+    private static boolean isIdempotent(HttpUriRequest request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+                || "DELETE".equals(method) || "OPTIONS".equals(method);
+    }
+
+    private void setReleaseTrigger(HttpUriRequest request, final NioConnection connection, final Exchange exchange)
+            throws IOException {
+        if (!(request instanceof AbortableHttpRequest)) {
+            return;
+        }
+        ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+            @Override
+            public void releaseConnection() {
+            }
+
+            @Override
+            public void abortConnection() {
+                connection.abort(exchange, new IOException("Request aborted"));
+            }
+        });
+    }
+
+    private EventLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private NioConnection pollIdle(String route) {
+        ConcurrentLinkedQueue<NioConnection> idle = idleConnections.get(route);
+        if (idle == null) {
+            return null;
+        }
+        NioConnection connection;
+        while ((connection = idle.poll()) != null) {
+            if (!connection.isClosed()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called on the event loop when a connection finished an exchange and can be reused.
+     */
+    void release(NioConnection connection) {
+        ConcurrentLinkedQueue<NioConnection> idle = idleConnections.get(connection.route);
+        if (idle == null) {
+            ConcurrentLinkedQueue<NioConnection> created = new ConcurrentLinkedQueue<NioConnection>();
+            idle = idleConnections.putIfAbsent(connection.route, created);
+            if (idle == null) {
+                idle = created;
+            }
+        }
+        if (idle.size() >= maxIdlePerRoute) {
+            connection.close(null);
+            return;
+        }
+        idle.offer(connection);
+    }
+
+    void remove(NioConnection connection) {
+        ConcurrentLinkedQueue<NioConnection> idle = idleConnections.get(connection.route);
+        if (idle != null) {
+            idle.remove(connection);
+        }
+    }
+
+    /**
+     * @return number of keep-alive connections currently parked for reuse
+     */
+    public int getIdleConnectionCount() {
+        int count = 0;
+        for (ConcurrentLinkedQueue<NioConnection> idle : idleConnections.values()) {
+            count += idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void shutdown() {
+        // secureTransport不是这里创建的, 不负责关闭
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private static final class Prepared {
+
+        final HttpHost target;
+        final String route;
+        final ByteBuffer requestBytes;
+        final boolean headRequest;
+        final int soTimeout;
+        final int connectTimeout;
+
+        Prepared(HttpHost target, ByteBuffer requestBytes, boolean headRequest, int soTimeout, int connectTimeout) {
+            this.target = target;
+            this.route = target.toHostString();
+            this.requestBytes = requestBytes;
+            this.headRequest = headRequest;
+            this.soTimeout = soTimeout;
+            this.connectTimeout = connectTimeout;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.king.http.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * A blocking keep-alive socket that carries pipelined batches: all requests of a batch are
+ * written back to back, then the responses are read in the same order with the incremental
+ * {@link Http1ResponseParser}. Bodies are buffered so the next response can be parsed right
+ * away, which is fine for the small GETs pipelining is meant for.
+ */
+final class PipelinedConnection implements Http1ResponseParser.Listener {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Http1ResponseParser parser = new Http1ResponseParser(this);
+    private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+    private HttpResponse head;
+    private ByteArrayOutputStream body;
+    private boolean complete;
+    private boolean reusable = true;
+    private int served;
+    private long idleSince;
+    private long keepAliveMillis;
+
+    PipelinedConnection(HttpHost target, int connectTimeout) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()), connectTimeout);
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Sends the batch and completes each request as its response arrives. If the server ends
+     * keep-alive part way through, the rest of the batch is left untouched for the caller to
+     * fall back on.
+     *
+     * @param maxKeepAliveMillis cap for the server's <code>Keep-Alive: timeout</code>
+     */
+    void execute(List<PipelinedRequest> batch, int soTimeout, long maxKeepAliveMillis) throws IOException {
+        served = 0;
+        socket.setSoTimeout(soTimeout);
+        for (PipelinedRequest request : batch) {
+            out.write(request.requestBytes);
+        }
+        out.flush();
+
+        for (PipelinedRequest request : batch) {
+            parser.reset(request.headRequest);
+            head = null;
+            body = null;
+            complete = false;
+            while (!complete) {
+                if (!buffer.hasRemaining()) {
+                    int n = in.read(buffer.array(), 0, buffer.capacity());
+                    if (n == -1) {
+                        parser.endOfInput();
+                        break;
+                    }
+                    buffer.position(0);
+                    buffer.limit(n);
+                }
+                parser.feed(buffer);
+            }
+            if (body != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+                entity.setContentType(head.getFirstHeader("Content-Type"));
+                entity.setContentEncoding(head.getFirstHeader("Content-Encoding"));
+                head.setEntity(entity);
+            }
+            request.complete(head);
+            served++;
+            if (!parser.isKeepAlive()) {
+                reusable = false;
+                return;
+            }
+            keepAliveMillis = keepAliveTimeout(head, maxKeepAliveMillis);
+        }
+        // 多出来的字节说明服务器和我们对不上了
+        if (buffer.hasRemaining()) {
+            reusable = false;
+        }
+        idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return responses delivered by the last {@link #execute} call
+     */
+    int served() {
+        return served;
+    }
+
+    boolean isReusable() {
+        return reusable && !socket.isClosed();
+    }
+
+    boolean isExpired(long now) {
+        return now - idleSince >= keepAliveMillis;
+    }
+
+    void close() {
+        reusable = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void onResponseHead(HttpResponse head, boolean hasBody, long contentLength) {
+        this.head = head;
+        if (hasBody) {
+            body = new ByteArrayOutputStream(contentLength > 0 ? (int) Math.min(contentLength, 1024 * 1024) : 1024);
+        }
+    }
+
+    @Override
+    public void onBody(byte[] data, int offset, int length) {
+        body.write(data, offset, length);
+    }
+
+    @Override
+    public void onComplete() {
+        complete = true;
+    }
+
+    private static long keepAliveTimeout(HttpResponse head, long timeout) {
+        Header keepAlive = head.getFirstHeader("Keep-Alive");
+        if (keepAlive == null) {
+            return timeout;
+        }
+        for (HeaderElement element : keepAlive.getElements()) {
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                try {
+                    return Math.min(timeout, Long.parseLong(element.getValue().trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    return timeout;
+                }
+            }
+        }
+        return timeout;
+    }
+}
@@ -0,0 +1,147 @@
+package com.king.http.transport;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * A request waiting for, or riding in, a pipelined batch. The calling thread blocks in
+ * {@link #await()} until it either has its response, is asked to lead the next batch, or is
+ * told to fall back to normal execution.
+ */
+final class PipelinedRequest {
+
+    static final int QUEUED = 0;
+    static final int IN_FLIGHT = 1;
+    static final int LEADING = 2;
+    static final int DONE = 3;
+    static final int FALLBACK = 4;
+    static final int ABORTED = 5;
+
+    final byte[] requestBytes;
+    final boolean headRequest;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int state = QUEUED;
+    private HttpResponse response;
+
+    PipelinedRequest(byte[] requestBytes, boolean headRequest) {
+        this.requestBytes = requestBytes;
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * QUEUED -> LEADING.
+     *
+     * @return false if the request was aborted meanwhile
+     */
+    boolean lead() {
+        return transition(QUEUED, LEADING);
+    }
+
+    /**
+     * QUEUED or LEADING -> IN_FLIGHT, when taken into a batch.
+     */
+    boolean inFlight() {
+        return transition(QUEUED, IN_FLIGHT) || transition(LEADING, IN_FLIGHT);
+    }
+
+    void complete(HttpResponse response) {
+        lock.lock();
+        try {
+            if (state == IN_FLIGHT) {
+                this.response = response;
+                state = DONE;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the request back to the caller for normal execution, unless it already finished.
+     */
+    void fallback() {
+        lock.lock();
+        try {
+            if (state == QUEUED || state == IN_FLIGHT || state == LEADING) {
+                state = FALLBACK;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a queued or in-flight request. A request that was just promoted to lead keeps
+     * running its batch, the other requests in it depend on that.
+     */
+    void abort() {
+        lock.lock();
+        try {
+            if (state == QUEUED || state == IN_FLIGHT) {
+                state = ABORTED;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int state() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    HttpResponse response() {
+        lock.lock();
+        try {
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return LEADING, DONE, FALLBACK or ABORTED
+     */
+    int await() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (state == QUEUED || state == IN_FLIGHT) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    state = ABORTED;
+                    throw new InterruptedIOException();
+                }
+            }
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean transition(int from, int to) {
+        lock.lock();
+        try {
+            if (state != from) {
+                return false;
+            }
+            state = to;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.king.http.transport;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.king.http.HttpTransport;
+
+/**
+ * HTTP/1.1 pipelining for bursts of idempotent GET and HEAD requests. Requests for the same
+ * route queue up; whichever thread finds a free lane leads a batch of up to
+ * {@link #setMaxDepth(int) maxDepth} of them, written back to back on one keep-alive connection,
+ * and the responses are read in order. A burst of n requests then costs about n / maxDepth round
+ * trips instead of n.
+ *
+ * Everything else, and every request a batch could not serve (connection closed part way,
+ * protocol error, timeout), goes to the delegate, normally the ThreadSafeClientConnManager
+ * based {@link com.king.http.DefaultHttpTransport}. Routes that break a pipeline are left alone
+ * for {@link #UNSUPPORTED_ROUTE_MILLIS}. Only plain <code>http</code> is pipelined.
+ *
+ * KingHttpClient client = new KingHttpClient();
+ * client.enablePipelining(8);
+ */
+public class PipeliningTransport implements HttpTransport {
+
+    public static final int DEFAULT_MAX_DEPTH = 8;
+    public static final int DEFAULT_CONNECTIONS_PER_ROUTE = 2;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+    public static final long UNSUPPORTED_ROUTE_MILLIS = 10 * 60 * 1000;
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final ConcurrentHashMap<String, Long> unsupportedRoutes = new ConcurrentHashMap<String, Long>();
+    private final BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
+    private final HttpParams params;
+    private final HttpTransport delegate;
+    private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+    private volatile int connectionsPerRoute = DEFAULT_CONNECTIONS_PER_ROUTE;
+    private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+
+    /**
+     * @param params client level parameters: socket/connect timeouts and user agent
+     * @param delegate executes everything that is not pipelined; not shut down with this transport
+     */
+    public PipeliningTransport(HttpParams params, HttpTransport delegate) {
+        this.params = params;
+        this.delegate = delegate;
+    }
+
+    public void addRequestInterceptor(HttpRequestInterceptor interceptor) {
+        httpProcessor.addRequestInterceptor(interceptor);
+    }
+
+    public void addResponseInterceptor(HttpResponseInterceptor interceptor) {
+        httpProcessor.addResponseInterceptor(interceptor);
+    }
+
+    /**
+     * Most requests written on a connection before reading the first response.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(1, maxDepth);
+    }
+
+    /**
+     * Pipelined connections per route, i.e. how many batches may be in flight at once.
+     */
+    public void setConnectionsPerRoute(int connectionsPerRoute) {
+        this.connectionsPerRoute = Math.max(1, connectionsPerRoute);
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * @return true while the route is excluded after a broken pipeline
+     */
+    public boolean isUnsupported(String host, int port) {
+        return isUnsupported(new HttpHost(host, port, "http").toHostString());
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        URI uri = request.getURI();
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+        HttpHost target = new HttpHost(uri.getHost(), port, "http");
+        String routeKey = target.toHostString();
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || !isIdempotentWithoutBody(request) || isUnsupported(routeKey)) {
+            return delegate.execute(request, context);
+        }
+        if (request.isAborted()) {
+            throw new IOException("Request aborted");
+        }
+        HttpParams requestParams = new DefaultedHttpParams(request.getParams(), params);
+        // 回退时delegate会再跑一遍拦截器, 先记下原始的头
+        Header[] originalHeaders = request.getAllHeaders();
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.FALSE);
+        try {
+            httpProcessor.process(request, context);
+        } catch (HttpException e) {
+            throw new ClientProtocolException(e);
+        }
+        ByteBuffer encoded = Http1RequestWriter.encode(request, HttpProtocolParams.getUserAgent(requestParams));
+        byte[] requestBytes = new byte[encoded.remaining()];
+        encoded.get(requestBytes);
+        PipelinedRequest pending = new PipelinedRequest(requestBytes, "HEAD".equalsIgnoreCase(request.getMethod()));
+        setReleaseTrigger(request, pending);
+
+        Route route = route(routeKey, target);
+        int state = route.enqueue(pending) ? PipelinedRequest.LEADING : pending.await();
+        if (state == PipelinedRequest.LEADING) {
+            lead(route, pending, requestParams);
+            state = pending.state();
+        }
+        if (state == PipelinedRequest.ABORTED || request.isAborted()) {
+            throw new IOException("Request aborted");
+        }
+        if (state == PipelinedRequest.FALLBACK) {
+            // 流水线没能处理, 按普通请求重新执行
+            request.setHeaders(originalHeaders);
+            return delegate.execute(request, context);
+        }
+        HttpResponse response = pending.response();
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+        context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+        try {
+            httpProcessor.process(response, context);
+        } catch (HttpException e) {
+            throw new ClientProtocolException(e);
+        }
+        return response;
+    }
+
+    private static boolean isIdempotentWithoutBody(HttpUriRequest request) {
+        String method = request.getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method))
+                && !(request instanceof HttpEntityEnclosingRequest);
+    }
+
+    private boolean isUnsupported(String routeKey) {
+        Long until = unsupportedRoutes.get(routeKey);
+        if (until == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= until) {
+            unsupportedRoutes.remove(routeKey, until);
+            return false;
+        }
+        return true;
+    }
+
+    private Route route(String routeKey, HttpHost target) {
+        Route route = routes.get(routeKey);
+        if (route == null) {
+            Route created = new Route(routeKey, target);
+            route = routes.putIfAbsent(routeKey, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Runs one batch led by <code>first</code>, then hands leadership to the next queued request.
+     */
+    private void lead(Route route, PipelinedRequest first, HttpParams requestParams) {
+        List<PipelinedRequest> batch = route.drain(first, maxDepth);
+        PipelinedConnection connection = null;
+        boolean reused = false;
+        try {
+            if (batch.isEmpty()) {
+                return;
+            }
+            connection = route.pollIdle();
+            reused = connection != null;
+            if (connection == null) {
+                connection = new PipelinedConnection(route.target,
+                        HttpConnectionParams.getConnectionTimeout(requestParams));
+            }
+            connection.execute(batch, HttpConnectionParams.getSoTimeout(requestParams), keepAliveMillis);
+            if (connection.isReusable()) {
+                route.release(connection);
+            } else {
+                connection.close();
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+                // 复用的空闲连接在第一个响应前断掉只是过期了; 已经处理过响应或者超时才说明服务器不支持流水线
+                if (connection.served() > 0 || (e instanceof SocketTimeoutException && !reused)) {
+                    unsupportedRoutes.put(route.key, System.currentTimeMillis() + UNSUPPORTED_ROUTE_MILLIS);
+                }
+            }
+        } finally {
+            for (PipelinedRequest request : batch) {
+                request.fallback();
+            }
+            first.fallback();
+            route.finishLeading();
+        }
+    }
+
+    private void setReleaseTrigger(HttpUriRequest request, final PipelinedRequest pending) throws IOException {
+        if (!(request instanceof AbortableHttpRequest)) {
+            return;
+        }
+        ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+            @Override
+            public void releaseConnection() {
+            }
+
+            @Override
+            public void abortConnection() {
+                pending.abort();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        // delegate不是这里创建的, 不负责关闭
+        for (Route route : routes.values()) {
+            route.closeIdle();
+        }
+    }
+
+    private final class Route {
+
+        final String key;
+        final HttpHost target;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedList<PipelinedRequest> queue = new LinkedList<PipelinedRequest>();
+        private final LinkedList<PipelinedConnection> idle = new LinkedList<PipelinedConnection>();
+        private int leaders;
+
+        Route(String key, HttpHost target) {
+            this.key = key;
+            this.target = target;
+        }
+
+        /**
+         * @return true if the caller has to lead a batch itself
+         */
+        boolean enqueue(PipelinedRequest request) {
+            lock.lock();
+            try {
+                if (leaders < connectionsPerRoute) {
+                    leaders++;
+                    request.lead();
+                    return true;
+                }
+                queue.add(request);
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<PipelinedRequest> drain(PipelinedRequest first, int maxDepth) {
+            List<PipelinedRequest> batch = new ArrayList<PipelinedRequest>(maxDepth);
+            lock.lock();
+            try {
+                if (first.inFlight()) {
+                    batch.add(first);
+                }
+                while (batch.size() < maxDepth && !queue.isEmpty()) {
+                    PipelinedRequest next = queue.removeFirst();
+                    // 排队时已经取消的直接跳过
+                    if (next.inFlight()) {
+                        batch.add(next);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return batch;
+        }
+
+        void finishLeading() {
+            lock.lock();
+            try {
+                leaders--;
+                while (!queue.isEmpty()) {
+                    if (queue.removeFirst().lead()) {
+                        leaders++;
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        PipelinedConnection pollIdle() {
+            long now = System.currentTimeMillis();
+            lock.lock();
+            try {
+                PipelinedConnection connection;
+                while ((connection = idle.poll()) != null) {
+                    if (connection.isReusable() && !connection.isExpired(now)) {
+                        return connection;
+                    }
+                    connection.close();
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(PipelinedConnection connection) {
+            lock.lock();
+            try {
+                if (idle.size() < connectionsPerRoute) {
+                    idle.add(connection);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            connection.close();
+        }
+
+        void closeIdle() {
+            lock.lock();
+            try {
+                for (PipelinedConnection connection : idle) {
+                    connection.close();
+                }
+                idle.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}